@@ -3,6 +3,8 @@ package cs351.core;
 import cs351.core.Engine.EvolutionEngine;
 import javafx.scene.image.Image;
 
+import java.util.List;
+
 /**
  * A FitnessFunction provides a way to quickly evaluate the fitness
  * of a given genome. No matter how a fitness function represents
@@ -20,6 +22,13 @@ import javafx.scene.image.Image;
  */
 public interface FitnessFunction
 {
+  /**
+   * Returned by the bounded versions of generateFitness and generateDeltaFitness when
+   * the genome was proven to be less fit than the given minimum before its evaluation
+   * finished. Since it is lower than any real fitness, it can be compared like one.
+   */
+  double REJECTED = Double.NEGATIVE_INFINITY;
+
   /**
    * Sets the image that the fitness function compares the genomes to
    * when calculating their fitness.
@@ -46,6 +55,115 @@ public interface FitnessFunction
    */
   double generateFitness(EvolutionEngine engine, Genome genome);
 
+  /**
+   * Works the same as generateFitness(engine, genome), except that the caller only cares
+   * about the result if it is at least minFitness. An implementation may stop as soon as it
+   * knows the genome can't reach minFitness and return REJECTED instead. Any other result
+   * must be the genome's exact fitness.
+   *
+   * By default this just calls generateFitness(engine, genome).
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to generate a fitness for
+   * @param minFitness lowest fitness the caller is interested in
+   * @return normalized fitness for the given genome, or REJECTED if it is below minFitness
+   */
+  default double generateFitness(EvolutionEngine engine, Genome genome, double minFitness)
+  {
+    return generateFitness(engine, genome);
+  }
+
+  /**
+   * Generates the fitness of every genome in the list and puts genome i's fitness in out[i].
+   * The results must be the same as calling generateFitness(engine, genome) on each, but an
+   * implementation can evaluate the genomes together to share setup and buffers between them.
+   *
+   * By default this just calls generateFitness(engine, genome) on each genome in order.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genomes genomes to generate a fitness for
+   * @param out array with at least genomes.size() elements to hold the results
+   */
+  default void generateFitness(EvolutionEngine engine, List<Genome> genomes, double[] out)
+  {
+    for (int i = 0; i < genomes.size(); i++) out[i] = generateFitness(engine, genomes.get(i));
+  }
+
+  /**
+   * Works the same as generateFitness(engine, genomes, out), except that the caller only
+   * wants the fittest genome in the list and only if it is at least minFitness. Any genome
+   * that is known to be below minFitness or below another genome in the list can get
+   * REJECTED instead of its fitness. The fittest genome always gets its exact fitness
+   * (unless it is below minFitness too).
+   *
+   * By default this calls generateFitness(engine, genome, minFitness) on each genome in
+   * order, raising minFitness to the best fitness found so far as it goes.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genomes genomes to generate a fitness for
+   * @param out array with at least genomes.size() elements to hold the results
+   * @param minFitness lowest fitness the caller is interested in
+   */
+  default void generateFitness(EvolutionEngine engine, List<Genome> genomes, double[] out, double minFitness)
+  {
+    for (int i = 0; i < genomes.size(); i++)
+    {
+      out[i] = generateFitness(engine, genomes.get(i), minFitness);
+      minFitness = Math.max(minFitness, out[i]);
+    }
+  }
+
+  /**
+   * Meant for genomes that change only a few triangles at a time, such as the genome
+   * a hill climber is working on. The output must be the same as
+   * generateFitness(engine, genome), but an implementation is free to keep what it learned
+   * from the last call for the same genome and only redo the work for the triangles
+   * that changed since then.
+   *
+   * By default this just calls generateFitness.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to generate a fitness for
+   * @return normalized fitness for the given genome
+   */
+  default double generateDeltaFitness(EvolutionEngine engine, Genome genome)
+  {
+    return generateFitness(engine, genome);
+  }
+
+  /**
+   * The bounded version of generateDeltaFitness - see generateFitness(engine, genome, minFitness)
+   * for how minFitness and REJECTED work.
+   *
+   * By default this just calls generateDeltaFitness(engine, genome).
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to generate a fitness for
+   * @param minFitness lowest fitness the caller is interested in
+   * @return normalized fitness for the given genome, or REJECTED if it is below minFitness
+   */
+  default double generateDeltaFitness(EvolutionEngine engine, Genome genome, double minFitness)
+  {
+    return generateDeltaFitness(engine, genome);
+  }
+
+  /**
+   * Called by the engine once per generation, while no genomes are being evaluated, with
+   * the best fitness in the population. A fitness function that evaluates genomes
+   * progressively (for example at a low resolution first) can use this to move on to its
+   * next stage. Returning true tells the engine that older fitness values can no longer be
+   * compared to new ones, so every genome needs its fitness regenerated.
+   *
+   * By default this never refines and returns false.
+   *
+   * @param bestFitness best fitness in the population
+   * @return true if fitness values need to be regenerated and false if not
+   */
+  default boolean refineResolution(double bestFitness)
+  {
+    return false;
+  }
+
   /**
    * Returns the maximum fitness for a Genome as a non-normalized integer. This
    * can be used to undo a normalized fitness (generateFitness(genome) * getMaxFitness() =
@@ -2,6 +2,7 @@ package cs351.core;
 
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Genome maintains an ordered list of triangles that are stored as float arrays.
@@ -11,14 +12,15 @@ import java.util.LinkedList;
 public final class Genome
 {
   private final static int ZERO_HASH = 341940517;
-  private static int ID = 0;
-  private int id;
+  private static final AtomicInteger ID = new AtomicInteger(0);
+  private final int id;
   protected Double fitness = 0.0;
   protected final LinkedList<float[]> TRIANGLES = new LinkedList<>();
   protected Tribe tribe;
+  private volatile long version = 0; // see getVersion()
 
   {
-    id = ++ID;
+    id = ID.incrementAndGet();
   }
 
   @Override
@@ -38,6 +40,17 @@ public final class Genome
             this.fitness.equals(genome.fitness);
   }
 
+  /**
+   * Gets the id that was given to this genome when it was created. No two genomes
+   * share the same id, and unlike hashCode() it does not change as the genome changes.
+   *
+   * @return unique id for this genome
+   */
+  public int getID()
+  {
+    return id;
+  }
+
   /**
    * Adds a triangle to the genome. The order that TRIANGLES are added
    * should be maintained.
@@ -46,6 +59,7 @@ public final class Genome
   public void add(float[] triangle)
   {
     TRIANGLES.add(triangle);
+    version++;
   }
 
   /**
@@ -58,7 +72,7 @@ public final class Genome
    */
   public void remove(float[] triangle)
   {
-    if (TRIANGLES.contains(triangle)) TRIANGLES.remove(triangle);
+    if (TRIANGLES.remove(triangle)) version++;
   }
 
   /**
@@ -67,8 +81,45 @@ public final class Genome
   public void clear()
   {
     TRIANGLES.clear();
+    version++;
+  }
+
+
+  /**
+   * Computes a 64-bit hash of the genome's triangle data (every gene of every triangle, in
+   * order). Unlike hashCode() this ignores fitness, so two genomes with the same triangles
+   * always hash the same. This walks every gene, so hold on to the result rather than
+   * calling it over and over.
+   *
+   * @return content hash of the triangle data
+   */
+  public long getContentHash()
+  {
+    long hash = 0xCBF29CE484222325L;
+    for (float[] triangle : TRIANGLES)
+    {
+      for (float gene : triangle)
+      {
+        hash = (hash ^ Float.floatToIntBits(gene)) * 0x100000001B3L;
+        hash ^= hash >>> 29;
+      }
+      hash = (hash ^ triangle.length) * 0x100000001B3L; // keeps triangle boundaries part of the hash
+    }
+    return hash;
   }
 
+  /**
+   * Gets a number that changes whenever triangles are added or removed or the fitness is
+   * set. Triangle data is changed in place, so this relies on a new fitness being set after
+   * every change (every mutator and crossover does). Comparing versions lets something that
+   * shows a genome skip re-reading it when nothing has changed.
+   *
+   * @return current version of the genome
+   */
+  public long getVersion()
+  {
+    return version;
+  }
 
   /**
    * Gets the size in terms of number of triangles.
@@ -98,6 +149,7 @@ public final class Genome
   public void setFitness(double fitness)
   {
     this.fitness = fitness;
+    version++;
   }
 
   /**
@@ -19,6 +19,8 @@ public class TriangleManager
   protected float maxAlpha = 1.0f;
   protected float maxXValue; // pulled from GUI
   protected float maxYValue; // pulled from GUI
+  protected float scaleX = 1.0f; // applied by getXCoordinates()
+  protected float scaleY = 1.0f; // applied by getYCoordinates()
 
   /**
    * Enum representing the different coordinate possibilities.
@@ -83,6 +85,20 @@ public class TriangleManager
     this.data = data;
   }
 
+  /**
+   * Sets how much getXCoordinates() and getYCoordinates() scale the vertices by. This
+   * does not change the triangle data itself, so it can be used to draw a triangle
+   * at a different resolution than the one its genome lives in. Defaults to 1.
+   *
+   * @param scaleX multiplier for x coordinates
+   * @param scaleY multiplier for y coordinates
+   */
+  public void setCoordinateScale(float scaleX, float scaleY)
+  {
+    this.scaleX = scaleX;
+    this.scaleY = scaleY;
+  }
+
   public float[] getNormalizedDNA()
   {
     return normalizedData;
@@ -104,21 +120,21 @@ public class TriangleManager
   }
 
   /**
-   * Format :: { x1, x2, x3 }
+   * Format :: { x1, x2, x3 } (multiplied by the coordinate scale)
    * @return float array with the formatted data
    */
   public float[] getXCoordinates()
   {
-    return new float[] { data[0], data[2], data[4] };
+    return new float[] { data[0] * scaleX, data[2] * scaleX, data[4] * scaleX };
   }
 
   /**
-   * Format :: { y1, y2, y3 }
+   * Format :: { y1, y2, y3 } (multiplied by the coordinate scale)
    * @return float array with the formatted data - lines up with getXCoordinates()
    */
   public float[] getYCoordinates()
   {
-    return new float[] { data[1], data[3], data[5] };
+    return new float[] { data[1] * scaleY, data[3] * scaleY, data[5] * scaleY };
   }
 
   /**
@@ -130,6 +146,46 @@ public class TriangleManager
     return new float[] { data[6], data[7], data[8], data[9] };
   }
 
+  /**
+   * Same as getXCoordinates(), but writes into the given array instead of allocating one.
+   * @param out array of at least 3 elements to hold { x1, x2, x3 }
+   * @return out
+   */
+  public float[] getXCoordinates(float[] out)
+  {
+    out[0] = data[0] * scaleX;
+    out[1] = data[2] * scaleX;
+    out[2] = data[4] * scaleX;
+    return out;
+  }
+
+  /**
+   * Same as getYCoordinates(), but writes into the given array instead of allocating one.
+   * @param out array of at least 3 elements to hold { y1, y2, y3 }
+   * @return out
+   */
+  public float[] getYCoordinates(float[] out)
+  {
+    out[0] = data[1] * scaleY;
+    out[1] = data[3] * scaleY;
+    out[2] = data[5] * scaleY;
+    return out;
+  }
+
+  /**
+   * Same as getColor(), but writes into the given array instead of allocating one.
+   * @param out array of at least 4 elements to hold { red, green, blue, alpha }
+   * @return out
+   */
+  public float[] getColor(float[] out)
+  {
+    out[0] = data[6];
+    out[1] = data[7];
+    out[2] = data[8];
+    out[3] = data[9];
+    return out;
+  }
+
   /**
    * Mutates one of the coordinates.
    * @param coordinate which coordinate to mutate (ex: Coordinate.X1)
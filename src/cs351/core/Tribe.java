@@ -78,6 +78,24 @@ public interface Tribe
    */
   Collection<Genome> getGenomes();
 
+  /**
+   * Gets the genome at the given position in the tribe's order as of the last sort(),
+   * without building a collection of every genome like getGenomes() does.
+   *
+   * @param index index of the genome (0 is the most fit)
+   * @return genome at the index
+   * @throws IllegalArgumentException thrown if the index is not valid
+   */
+  Genome get(int index) throws IllegalArgumentException;
+
+  /**
+   * Gets a number that changes whenever genomes are added, removed or reordered. Changes
+   * to the genomes themselves don't change it (see Genome.getVersion()).
+   *
+   * @return current version of the tribe
+   */
+  long getVersion();
+
   /**
    * Runs through all genomes in the tribe and reorders them based on their fitness.
    *
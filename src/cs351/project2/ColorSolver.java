@@ -0,0 +1,320 @@
+package cs351.project2;
+
+import cs351.core.Genome;
+import cs351.core.TriangleManager;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+
+/**
+ * Works out the color that brings a triangle's pixels closest to the target (least squares)
+ * for the triangle's current shape and alpha, instead of searching for it. With alpha a,
+ * each covered pixel blends to a * c + (1 - a) * u for the pixel u underneath, so the best
+ * channel value c is (sum(t) - (1 - a) * sum(u)) / (a * n) over the n covered pixels, where
+ * t is the target. Triangles drawn on top of this one are ignored, so the color is only
+ * optimal for the pixels they leave uncovered.
+ *
+ * The target is set along with the scale, render mode and quality genomes are evaluated
+ * with (see setTarget), so that the color is solved against the same image and drawn the
+ * same way as the genome is scored. FitnessCalculator.solveColor does this for its current
+ * pyramid level. Genomes are always read in full resolution coordinates.
+ *
+ * Without antialiasing, the target's channels are summed along each row when the target is
+ * set, so the target side of every covered run costs O(1). With antialiasing, partly covered
+ * pixels only blend by their coverage times a, so each pixel is weighted by its own
+ * a_i = a * coverage and c is sum(a_i * (t - (1 - a_i) * u)) / sum(a_i * a_i) instead. Either
+ * way the composite underneath is drawn over just the triangle's bounding box.
+ *
+ * Any number of threads can call solve at once - each gets its own renderer.
+ *
+ * @author Justin
+ */
+public class ColorSolver
+{
+  private static final float[] OPAQUE_WHITE = { 255.0f, 255.0f, 255.0f, 1.0f };
+  private volatile Target target; // replaced as a whole when the target changes
+  private volatile Image targetImage; // image the target was last set from by setTargetImage
+  private final ThreadLocal<WorkerScratch> SCRATCH = new ThreadLocal<>();
+
+  /**
+   * Everything about the target that solve reads.
+   *
+   * @author Justin
+   */
+  private static final class Target
+  {
+    private final int[] PIXELS;
+    private final int WIDTH, HEIGHT;
+    private final float SCALE_X, SCALE_Y;
+    private final TriangleRenderer.RenderMode MODE;
+    private final TriangleRenderer.RenderQuality QUALITY;
+    // Per channel, prefix sums along each row - row y's sum over [x0, x1) is
+    // [y * (WIDTH + 1) + x1] - [y * (WIDTH + 1) + x0]
+    private final long[][] ROW_SUMS;
+
+    private Target(int[] pixels, int width, int height, float scaleX, float scaleY, TriangleRenderer.RenderMode mode,
+                   TriangleRenderer.RenderQuality quality, long[][] rowSums)
+    {
+      PIXELS = pixels;
+      WIDTH = width;
+      HEIGHT = height;
+      SCALE_X = scaleX;
+      SCALE_Y = scaleY;
+      MODE = mode;
+      QUALITY = quality;
+      ROW_SUMS = rowSums;
+    }
+
+    /**
+     * Checks whether colors are only ever drawn to the pixels getCoveredSpans finds, at full
+     * alpha, so that the row sums can be used.
+     */
+    private boolean isCoverageExact()
+    {
+      return QUALITY == TriangleRenderer.RenderQuality.NONE && MODE != TriangleRenderer.RenderMode.JAVA2D;
+    }
+  }
+
+  /**
+   * Renderers and buffers owned by a single thread, made for one target.
+   *
+   * @author Justin
+   */
+  private static final class WorkerScratch
+  {
+    private final Target TARGET;
+    private final TriangleRenderer RENDERER;
+    private final TriangleManager MANAGER = new TriangleManager();
+    private final int[] SPANS;
+    private final float[] X_COORDINATES = new float[3];
+    private final float[] Y_COORDINATES = new float[3];
+    private final float[] COLOR = new float[4];
+    private TriangleRenderer mask; // draws the triangle's coverage (made when antialiasing)
+
+    private WorkerScratch(Target target)
+    {
+      TARGET = target;
+      RENDERER = new TriangleRenderer(target.WIDTH, target.HEIGHT, target.MODE);
+      RENDERER.setQuality(target.QUALITY);
+      MANAGER.setCoordinateScale(target.SCALE_X, target.SCALE_Y);
+      SPANS = new int[target.HEIGHT * 3];
+    }
+
+    private TriangleRenderer getMask()
+    {
+      if (mask == null)
+      {
+        mask = new TriangleRenderer(TARGET.WIDTH, TARGET.HEIGHT, TARGET.MODE);
+        mask.setQuality(TARGET.QUALITY);
+      }
+      return mask;
+    }
+  }
+
+  /**
+   * Sets the image that colors are solved against, drawn in FIXED_POINT mode without
+   * antialiasing at the image's own resolution. Does nothing if it is already the target,
+   * so it is cheap to call before every solve.
+   *
+   * @param image reference to a valid target image
+   */
+  public void setTargetImage(Image image)
+  {
+    if (targetImage == image) return;
+    int width = (int)image.getWidth();
+    int height = (int)image.getHeight();
+    int[] pixels = new int[width * height];
+    image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+    setTarget(pixels, width, height, 1.0f, 1.0f, TriangleRenderer.RenderMode.FIXED_POINT,
+              TriangleRenderer.RenderQuality.NONE);
+    targetImage = image;
+  }
+
+  /**
+   * Sets the packed ARGB pixels that colors are solved against, along with how genomes are
+   * drawn when they are scored against them. Does nothing if all of them are already the
+   * target's (the pixels are compared by reference), so it is cheap to call before every solve.
+   *
+   * @param pixels packed ARGB target pixels (not copied, so they must not change afterwards)
+   * @param width width of the target (in pixels)
+   * @param height height of the target (in pixels)
+   * @param scaleX multiplier that takes genome x coordinates to pixels
+   * @param scaleY multiplier that takes genome y coordinates to pixels
+   * @param mode mode genomes are drawn with
+   * @param quality quality genomes are drawn with
+   */
+  public void setTarget(int[] pixels, int width, int height, float scaleX, float scaleY,
+                        TriangleRenderer.RenderMode mode, TriangleRenderer.RenderQuality quality)
+  {
+    Target current = target;
+    if (current != null && current.PIXELS == pixels && current.SCALE_X == scaleX && current.SCALE_Y == scaleY &&
+        current.MODE == mode && current.QUALITY == quality)
+    {
+      return;
+    }
+
+    long[][] rowSums = new long[3][(width + 1) * height];
+    for (int y = 0; y < height; y++)
+    {
+      int offset = y * (width + 1);
+      for (int x = 0; x < width; x++)
+      {
+        int color = pixels[y * width + x];
+        for (int channel = 0; channel < 3; channel++)
+        {
+          rowSums[channel][offset + x + 1] = rowSums[channel][offset + x] + ((color >> (16 - 8 * channel)) & 0xFF);
+        }
+      }
+    }
+    target = new Target(pixels, width, height, scaleX, scaleY, mode, quality, rowSums);
+    targetImage = null;
+  }
+
+  /**
+   * Sets the red, green and blue genes of one of the genome's triangles to the least squares
+   * best color for its shape and alpha, given the triangles drawn before it.
+   *
+   * @param genome genome the triangle belongs to
+   * @param triangle triangle to solve (must be one of the genome's own arrays)
+   * @return false if the triangle covers no pixels or is fully transparent, in which case
+   *         its genes are left alone
+   */
+  public boolean solve(Genome genome, float[] triangle)
+  {
+    Target current = target;
+    if (current == null) throw new IllegalStateException("Target image is not set");
+    WorkerScratch scratch = SCRATCH.get();
+    if (scratch == null || scratch.TARGET != current)
+    {
+      scratch = new WorkerScratch(current);
+      SCRATCH.set(scratch);
+    }
+    float alpha = Math.min(triangle[9], 1.0f);
+    if (!(alpha > 0.0f)) return false;
+
+    // Draw what is underneath the triangle, but only over its bounding box (with a pixel of
+    // margin for antialiased edges)
+    TriangleRenderer renderer = scratch.RENDERER;
+    TriangleManager manager = scratch.MANAGER;
+    int x0 = (int)(Math.min(triangle[0], Math.min(triangle[2], triangle[4])) * current.SCALE_X) - 1;
+    int y0 = (int)(Math.min(triangle[1], Math.min(triangle[3], triangle[5])) * current.SCALE_Y) - 1;
+    int x1 = (int)(Math.max(triangle[0], Math.max(triangle[2], triangle[4])) * current.SCALE_X) + 2;
+    int y1 = (int)(Math.max(triangle[1], Math.max(triangle[3], triangle[5])) * current.SCALE_Y) + 2;
+    renderer.setClip(x0, y0, x1 - x0, y1 - y0);
+    renderer.clear();
+    for (float[] below : genome.getTriangles())
+    {
+      if (below == triangle) break;
+      manager.setTriangleData(below);
+      renderer.renderTriangle(manager.getXCoordinates(scratch.X_COORDINATES),
+                              manager.getYCoordinates(scratch.Y_COORDINATES), manager.getColor(scratch.COLOR));
+    }
+    manager.setTriangleData(triangle);
+    manager.getXCoordinates(scratch.X_COORDINATES);
+    manager.getYCoordinates(scratch.Y_COORDINATES);
+
+    double[] best;
+    if (current.isCoverageExact())
+    {
+      int numSpans = renderer.getCoveredSpans(scratch.X_COORDINATES, scratch.Y_COORDINATES, scratch.SPANS);
+      best = solveSpans(current, scratch.SPANS, numSpans, renderer.getPixels(), alpha);
+    }
+    else
+    {
+      TriangleRenderer mask = scratch.getMask();
+      mask.setClip(x0, y0, x1 - x0, y1 - y0);
+      mask.clear();
+      mask.renderTriangle(scratch.X_COORDINATES, scratch.Y_COORDINATES, OPAQUE_WHITE);
+      mask.clearClip();
+      mask.markComplete();
+      best = solveCoverage(current, mask.getPixels(), renderer.getPixels(), alpha, x0, y0, x1, y1);
+    }
+    renderer.clearClip();
+    renderer.markComplete();
+    if (best == null) return false;
+
+    for (int channel = 0; channel < 3; channel++)
+    {
+      triangle[6 + channel] = (float)Math.round(Math.max(0.0, Math.min(best[channel], 255.0)));
+    }
+    return true;
+  }
+
+  /**
+   * Solves each channel over pixel runs the triangle fully covers.
+   *
+   * @return best red, green and blue, or null if no pixels are covered
+   */
+  private static double[] solveSpans(Target current, int[] spans, int numSpans, int[] pixels, float alpha)
+  {
+    int width = current.WIDTH;
+    long numPixels = 0;
+    long[] targetSums = new long[3];
+    long[] underneathSums = new long[3];
+    for (int i = 0; i < numSpans; i++)
+    {
+      int y = spans[i * 3], spanStart = spans[i * 3 + 1], spanEnd = spans[i * 3 + 2];
+      int offset = y * (width + 1);
+      for (int channel = 0; channel < 3; channel++)
+      {
+        long[] rowSums = current.ROW_SUMS[channel];
+        targetSums[channel] += rowSums[offset + spanEnd] - rowSums[offset + spanStart];
+      }
+      for (int index = y * width + spanStart; index < y * width + spanEnd; index++)
+      {
+        int color = pixels[index];
+        underneathSums[0] += (color >> 16) & 0xFF;
+        underneathSums[1] += (color >> 8) & 0xFF;
+        underneathSums[2] += color & 0xFF;
+      }
+      numPixels += spanEnd - spanStart;
+    }
+    if (numPixels == 0) return null;
+
+    double[] best = new double[3];
+    for (int channel = 0; channel < 3; channel++)
+    {
+      best[channel] = (targetSums[channel] - (1.0 - alpha) * underneathSums[channel]) / (alpha * numPixels);
+    }
+    return best;
+  }
+
+  /**
+   * Solves each channel over [x0, x1) x [y0, y1), weighting every pixel by the triangle's
+   * coverage of it (the red channel of the mask, which had the triangle drawn on it in opaque
+   * white over black).
+   *
+   * @return best red, green and blue, or null if no pixels are covered
+   */
+  private static double[] solveCoverage(Target current, int[] mask, int[] pixels, float alpha,
+                                        int x0, int y0, int x1, int y1)
+  {
+    int width = current.WIDTH;
+    x0 = Math.max(x0, 0);
+    y0 = Math.max(y0, 0);
+    x1 = Math.min(x1, width);
+    y1 = Math.min(y1, current.HEIGHT);
+    double sumOfSquaredWeights = 0.0;
+    double[] sums = new double[3];
+    for (int y = y0; y < y1; y++)
+    {
+      for (int index = y * width + x0; index < y * width + x1; index++)
+      {
+        int coverage = (mask[index] >> 16) & 0xFF;
+        if (coverage == 0) continue;
+        double weight = alpha * coverage / 255.0;
+        int targetColor = current.PIXELS[index];
+        int color = pixels[index];
+        for (int channel = 0; channel < 3; channel++)
+        {
+          int shift = 16 - 8 * channel;
+          sums[channel] += weight * (((targetColor >> shift) & 0xFF) - (1.0 - weight) * ((color >> shift) & 0xFF));
+        }
+        sumOfSquaredWeights += weight * weight;
+      }
+    }
+    if (sumOfSquaredWeights == 0.0) return null;
+
+    for (int channel = 0; channel < 3; channel++) sums[channel] /= sumOfSquaredWeights;
+    return sums;
+  }
+}
@@ -0,0 +1,122 @@
+package cs351.project2;
+
+import cs351.core.Engine.EvolutionEngine;
+import cs351.core.Engine.GUI;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.stage.Stage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Wrapper that lets the engine run on a thread of its own while the window it wraps stays on
+ * the JavaFX thread. The engine calls update at every safe point, which happens far more
+ * often than the screen refreshes, so most calls return straight away. Once the JavaFX thread
+ * has asked for a frame with requestFrame, update has the window copy what it shows out of
+ * the engine (see GameWindow.publishFrame) and leaves drawing it to the JavaFX thread, so the
+ * window never sees a half-updated population and the engine never waits on the window.
+ *
+ * Frames the engine hasn't gotten to yet are merged into one, so a slow generation drops
+ * frames instead of queueing them up. Everything else is passed straight through.
+ *
+ * @author Justin
+ */
+public class ConcurrentGUIWrapper implements GUI
+{
+  private final GameWindow GUI;
+  private final AtomicBoolean IS_FRAME_REQUESTED = new AtomicBoolean(false);
+
+  /**
+   * Creates a new wrapper.
+   * @param gui window to update on the JavaFX thread
+   */
+  public ConcurrentGUIWrapper(GameWindow gui)
+  {
+    GUI = gui;
+  }
+
+  /**
+   * Asks for the GUI to be updated at the engine's next safe point. Called from the JavaFX
+   * thread once per frame.
+   */
+  public void requestFrame()
+  {
+    IS_FRAME_REQUESTED.set(true);
+  }
+
+  /**
+   * Initializes the GUI with the given JavaFX stage and the given engine. Has to be
+   * called from the JavaFX thread.
+   *
+   * @param stage  JavaFX stage to use to initialize the main GUI
+   * @param engine evolution engine to use for callbacks during init
+   */
+  @Override
+  public void init(Stage stage, EvolutionEngine engine)
+  {
+    GUI.init(stage, engine);
+  }
+
+  /**
+   * Publishes a new frame if one was requested and has the JavaFX thread draw it. Never
+   * waits for the JavaFX thread.
+   *
+   * @param engine reference to an evolution engine for callbacks
+   */
+  @Override
+  public void update(EvolutionEngine engine)
+  {
+    if (!IS_FRAME_REQUESTED.getAndSet(false)) return;
+    GUI.publishFrame(engine);
+    if (Platform.isFxApplicationThread()) GUI.update(engine);
+    else Platform.runLater(() -> GUI.update(engine));
+  }
+
+  @Override
+  public boolean hasUserSignaledQuit()
+  {
+    return GUI.hasUserSignaledQuit();
+  }
+
+  @Override
+  public boolean getHasChangedTribeCount()
+  {
+    return GUI.getHasChangedTribeCount();
+  }
+
+  @Override
+  public boolean getHasSelectedNewImage()
+  {
+    return GUI.getHasSelectedNewImage();
+  }
+
+  @Override
+  public boolean isGenomePaused()
+  {
+    return GUI.isGenomePaused();
+  }
+
+  @Override
+  public int getTribes()
+  {
+    return GUI.getTribes();
+  }
+
+  @Override
+  public int getImageWidth()
+  {
+    return GUI.getImageWidth();
+  }
+
+  @Override
+  public int getImageHeight()
+  {
+    return GUI.getImageHeight();
+  }
+
+  @Override
+  public Image getTargetImage()
+  {
+    return GUI.getTargetImage();
+  }
+}
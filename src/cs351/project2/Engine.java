@@ -1,6 +1,7 @@
 package cs351.project2;
 
 import cs351.core.Engine.*;
+import cs351.core.FitnessFunction;
 import cs351.core.Genome;
 import cs351.core.Tribe;
 import cs351.project2.crossover.CrossMutateSelector;
@@ -34,7 +35,7 @@ public final class Engine implements EvolutionEngine
   // General class members
   private Population population;
   private GUI gui;
-  private Image target;
+  private volatile Image target; // read by mutator jobs on worker threads
   private Log log;
   private int numTribes;
   private int numUpdates = 0;
@@ -212,7 +213,7 @@ public final class Engine implements EvolutionEngine
   @Override
   public Image getTarget()
   {
-    throw new RuntimeException("getTarget() not finished");
+    return target;
   }
 
   /**
@@ -395,6 +396,11 @@ public final class Engine implements EvolutionEngine
         previousBest = population.getOverallBest().getFitness();
       }
 
+      // Nothing is being evaluated right now, so this is a safe point for the fitness
+      // function to switch resolutions
+      FitnessFunction function = population.getFitnessFunction();
+      if (function.refineResolution(population.getOverallBest().getFitness())) rescorePopulation(function);
+
       double percentToCross = .95;
       if (currentNumMutatorPhasesRun < 500 || population.getOverallBest().getFitness() < percentToCross)
       {
@@ -420,6 +426,19 @@ public final class Engine implements EvolutionEngine
     }
   }
 
+  /**
+   * Returns only when every job started by generation() has finished. A thread that does
+   * nothing but call generation() can call this in between instead of spinning while the
+   * jobs run. Must be called from the same thread as generation().
+   */
+  public void waitForGeneration()
+  {
+    if (!IS_INITIALIZED.get()) return;
+    mutatorJobList.waitForCompletion();
+    singlePointCrossList.waitForCompletion();
+    twoPointCrossList.waitForCompletion();
+  }
+
   @Override
   public double getAverageGenerationsPerSecond()
   {
@@ -595,6 +614,36 @@ public final class Engine implements EvolutionEngine
     populationCount = 0;
   }
 
+  /**
+   * Regenerates the fitness of every genome and re-sorts each tribe. Used after the fitness
+   * function changes how it evaluates genomes, since old fitness values can't be compared to
+   * new ones. The rescore is written to the log since fitness values jump when it happens.
+   * Only call when no mutator/cross jobs are active.
+   * @param function fitness function to rescore with
+   */
+  private void rescorePopulation(FitnessFunction function)
+  {
+    enginePrint("Fitness function refined - rescoring population");
+    log.log("engine", "Fitness function refined at generation %d - rescoring population", numUpdates);
+    JobList rescoreList = new JobList(jobSystem);
+    for (Tribe tribe : population.getTribes())
+    {
+      final Tribe TRIBE = tribe;
+      rescoreList.add(new Job()
+      {
+        @Override
+        public void start(int threadID)
+        {
+          for (Genome genome : TRIBE.getGenomes()) genome.setFitness(function.generateFitness(Engine.this, genome));
+          TRIBE.sort();
+        }
+      }, 1);
+    }
+    rescoreList.submitJobs(true);
+    rescoreList.waitForCompletion();
+    previousBest = population.getOverallBest().getFitness();
+  }
+
   private void enginePrint(String message)
   {
     System.out.println("(ENGINE) " + message);
@@ -3,20 +3,26 @@ package cs351.project2;
 import cs351.core.Engine.*;
 import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 
 /**
- * This is where the whole application starts and contains the main loop.
+ * This is where the whole application starts and contains the main loop. The engine runs
+ * generations back to back on a thread of its own, and the JavaFX thread only asks for the
+ * GUI to be updated once per frame (see ConcurrentGUIWrapper), so the number of generations
+ * per second isn't tied to the screen's refresh rate.
  *
  * @author Justin
  */
 public class EvolutionLoop extends Application
 {
+  private static final long PAUSED_SLEEP_MILLISECONDS = 5;
   protected EvolutionEngine engine;
   protected GUI game;
   protected boolean jobSystemShutdown = false;
   protected Stage stage;
+  private ConcurrentGUIWrapper frameSync;
 
   @Override
   public void start(Stage stage)
@@ -29,7 +35,8 @@ public class EvolutionLoop extends Application
     engine = new Engine();
     Globals.CONCURRENT_GENOME_LIST.init(engine);
     // null for population and gui for now until those classes are up and running
-    engine.init(new String[0], stage, new GamePopulation(), new GameWindow());
+    frameSync = new ConcurrentGUIWrapper(new GameWindow());
+    engine.init(new String[0], stage, new GamePopulation(), frameSync);
     if (!stage.isShowing()) stage.show();
     loop();
   }
@@ -39,25 +46,87 @@ public class EvolutionLoop extends Application
    */
   protected void loop()
   {
-    // Main loop
+    new Thread(this::runEngine, "Evolution Engine").start();
+
+    // The JavaFX thread only samples the engine - frames it asks for while a generation is
+    // still running are merged into one
     new AnimationTimer()
     {
       @Override
       public void handle(long now)
       {
-        // Check to see if we need to quit
-        checkForShutdownOrPause();
-
         if (engine.isEngineShutdown())
         {
           this.stop();
           return;
         }
+        frameSync.requestFrame();
+      }
+    }.start();
+  }
+
+  /**
+   * Runs generations until the engine shuts down, then closes the stage. This is the body of
+   * the engine's thread. If anything goes wrong on the way, the error is logged and the
+   * engine is shut down, and the stage is closed either way.
+   */
+  private void runEngine()
+  {
+    try
+    {
+      while (true)
+      {
+        // Check to see if we need to quit
+        checkForShutdownOrPause();
+
+        if (engine.isEngineShutdown()) break;
 
-        // Start the next generation
+        // Start the next generation and wait for its jobs instead of spinning
         engine.generation();
+        ((Engine)engine).waitForGeneration();
+        if (engine.isEnginePaused()) Thread.sleep(PAUSED_SLEEP_MILLISECONDS);
       }
-    }.start();
+    }
+    catch (InterruptedException e)
+    {
+      // Do nothing
+    }
+    catch (Throwable e)
+    {
+      stopAfterError(e);
+    }
+    finally
+    {
+      // Make sure the stage is closed
+      Platform.runLater(() ->
+      {
+        if (stage.isShowing()) stage.close();
+      });
+    }
+  }
+
+  /**
+   * Reports an error that stopped the engine's thread and shuts the engine down as far as it
+   * still can.
+   * @param error error that stopped the engine
+   */
+  private void stopAfterError(Throwable error)
+  {
+    System.out.println("(ENGINE) Stopped by an error - shutting down");
+    error.printStackTrace();
+    try
+    {
+      if (error instanceof Exception && engine.getLog() != null) engine.getLog().logException("engine", (Exception)error);
+      if (!engine.isEngineShutdown())
+      {
+        engine.beginShutdown();
+        engine.generation(); // finishes the shutdown
+      }
+    }
+    catch (Throwable e)
+    {
+      System.out.println("(ENGINE) Could not shut down cleanly: " + e);
+    }
   }
 
   /**
@@ -87,16 +156,13 @@ public class EvolutionLoop extends Application
   }
 
   /**
-   * Initiates the application's close process.
+   * Initiates the application's close process. The engine's thread finishes shutting the
+   * engine down and then closes the stage.
    */
   protected void closeApplication()
   {
     // Let the engine know it's time to quit
     engine.beginShutdown();
-    // Engine needs to keep updating to eventually close
-    while (!engine.isEngineShutdown()) engine.generation();
-    // Make sure the stage is closed
-    if (stage.isShowing()) stage.close();
   }
 
   /**
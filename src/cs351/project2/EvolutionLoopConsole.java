@@ -20,8 +20,9 @@ public class EvolutionLoopConsole extends EvolutionLoop
 
       if (engine.isEngineShutdown()) break;
 
-      // Start the next generation
+      // Start the next generation and wait for its jobs instead of spinning
       engine.generation();
+      ((Engine)engine).waitForGeneration();
     }
   }
 
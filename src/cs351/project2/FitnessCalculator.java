@@ -1,32 +1,766 @@
 package cs351.project2;
 
 import cs351.core.Engine.EvolutionEngine;
-import cs351.core.Engine.GUI;
+import cs351.core.Engine.DataField;
+import cs351.core.Engine.Log;
+import cs351.core.Engine.Statistics;
 import cs351.core.FitnessFunction;
 import cs351.core.Genome;
 import cs351.core.TriangleManager;
 import javafx.scene.image.Image;
-import javafx.scene.image.PixelReader;
-import java.util.Collection;
-import java.util.LinkedList;
+import javafx.scene.image.PixelFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Given a target image and a genome, this will calculate the fitness (but not set it)
  * for the genome in question.
  *
+ * Besides rendering and comparing the whole genome, it can rescore a genome from its
+ * cached last render, evaluate against a smaller copy of the target first, give up on a
+ * genome once it can't reach a minimum fitness and remember the fitness of genomes it
+ * has already seen. Each of these is described where it is set up.
+ *
  * @author Justin
  */
 public class FitnessCalculator implements FitnessFunction
 {
+  /**
+   * Width and height (in pixels) of the tiles that cached errors are tracked by. Only the
+   * tiles touched by a change are rescored by generateDeltaFitness.
+   */
+  public static final int ERROR_TILE_SIZE = 32;
+  private static final long DEFAULT_RENDER_CACHE_BUDGET = 64L * 1024 * 1024; // bytes
+  private static final int DEFAULT_CHECKPOINT_INTERVAL = 25; // triangles
+  private static final int MIN_PYRAMID_SIZE = 32; // pixels - no level is made smaller than this
+  private static final double DEFAULT_REFINE_FITNESS = 0.9;
+  private static final int DEFAULT_REFINE_STAGNATION = 250; // generations
+  private static final double MIN_IMPROVEMENT = 1e-4; // smaller gains count as stagnating
+  private static final int SCORE_BAND_HEIGHT = 32; // rows rendered between checks of the error bound
+  // Pixels summed per int block - a power of two below 11008, the largest pixel count whose
+  // squared error (at most 3 * 255 * 255 per pixel) fits in an int
+  private static final int ERROR_BLOCK_SIZE = 8192;
+  private static final double DEFAULT_SCREENING_ERRORS = 3.0; // standard errors
+  private static final int MAX_BATCH_RENDERERS = 4; // genomes a batch evaluation draws side by side
+  private static final int DEFAULT_MEMO_SIZE = 1 << 16; // entries
+  // Chosen once at startup - run with -Dcs351.scalarErrorKernel=true to use the plain loop
+  private static final boolean USE_SCALAR_ERROR_KERNEL = Boolean.getBoolean("cs351.scalarErrorKernel");
+  // Guards settings changes - evaluations only read volatile settings and never take it
   private final ReentrantLock LOCK = new ReentrantLock();
+  // Keyed by genome id - caches are taken out while in use (see checkOutRenderCache)
+  private final ConcurrentHashMap<Integer, GenomeRenderCache> RENDER_CACHES = new ConcurrentHashMap<>();
+  private final ReentrantLock EVICTION_LOCK = new ReentrantLock();
+  private final AtomicLong RENDER_CACHE_CLOCK = new AtomicLong(0); // orders check-ins for eviction
+  private final AtomicLong RENDER_CACHE_BYTES = new AtomicLong(0);
+  // Fitness of recently evaluated genomes by content hash, looked up before anything is drawn
+  private final FitnessMemo MEMO = new FitnessMemo(DEFAULT_MEMO_SIZE);
+  private final ColorSolver COLOR_SOLVER = new ColorSolver(); // see solveColor
+  private volatile long renderCacheBudget = DEFAULT_RENDER_CACHE_BUDGET;
+  private volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
   private Image target;
-  private LinkedList<TriangleRenderer> renderList = new LinkedList<>();
+  // pyramid[0] is the full resolution target, every level after that is half the size
+  private PyramidLevel[] pyramid = new PyramidLevel[0];
+  private int maxPyramidLevels = 1;
+  // Settings read by every evaluation are volatile so evaluations never have to lock to read them
+  private volatile PyramidLevel level; // level genomes are currently evaluated at
+  private double refineFitness = DEFAULT_REFINE_FITNESS;
+  private int refineStagnation = DEFAULT_REFINE_STAGNATION;
+  private double bestAtLevel = 0.0;
+  private int generationsWithoutImprovement = 0;
+  private volatile int screeningStride = 0; // rows between screening samples (0 if screening is off)
+  private volatile double screeningErrors = DEFAULT_SCREENING_ERRORS;
+  private volatile int bandParallelism = 1; // bands generateFitness splits each genome into
+  private volatile ForkJoinPool bandPool = null; // runs the bands (null if bandParallelism is 1)
+  private volatile TriangleRenderer.RenderMode renderMode = TriangleRenderer.RenderMode.FIXED_POINT;
+  private volatile TriangleRenderer.RenderQuality renderQuality = TriangleRenderer.RenderQuality.NONE;
+  private volatile TriangleRenderer.RenderQuality screeningQuality = null; // null to screen at renderQuality
+  private volatile boolean coverageScoring = true; // only compare the pixels triangles can touch
+  private volatile boolean spanCaching = true; // evaluation renderers keep triangle rows by vertices
+  private final ThreadLocal<WorkerScratch> SCRATCH = new ThreadLocal<>();
+
+  /**
+   * Renderer and buffers owned by a single thread. Every thread that evaluates genomes
+   * gets its own, made for the current pyramid level and render mode, so evaluations
+   * never share (or have to lock) them. It is only replaced when the level or mode changes.
+   *
+   * @author Justin
+   */
+  private static final class WorkerScratch
+  {
+    private final PyramidLevel LEVEL;
+    private final TriangleRenderer RENDERER;
+    private final TriangleManager MANAGER = new TriangleManager();
+    private final float[] X_COORDINATES = new float[3];
+    private final float[] Y_COORDINATES = new float[3];
+    private final float[] COLOR = new float[4];
+    // Renderers for batch evaluations - the first is RENDERER and the rest are made when needed
+    private final TriangleRenderer[] BATCH_RENDERERS = new TriangleRenderer[MAX_BATCH_RENDERERS];
+    private TriangleRenderer screeningRenderer; // made when screening draws at a different quality
+    // Per row, the columns [ROW_START, ROW_END) any triangle can touch (see findCoverage)
+    private final int[] ROW_START, ROW_END;
+
+    private WorkerScratch(PyramidLevel level, TriangleRenderer.RenderMode mode, TriangleRenderer.RenderQuality quality)
+    {
+      LEVEL = level;
+      ROW_START = new int[level.HEIGHT];
+      ROW_END = new int[level.HEIGHT];
+      RENDERER = new TriangleRenderer(level.WIDTH, level.HEIGHT, mode);
+      RENDERER.setQuality(quality);
+      BATCH_RENDERERS[0] = RENDERER;
+      MANAGER.setCoordinateScale(level.SCALE_X, level.SCALE_Y);
+    }
+
+    private TriangleRenderer getBatchRenderer(int index)
+    {
+      if (BATCH_RENDERERS[index] == null)
+      {
+        BATCH_RENDERERS[index] = new TriangleRenderer(LEVEL.WIDTH, LEVEL.HEIGHT, RENDERER.getRenderMode());
+        BATCH_RENDERERS[index].setQuality(RENDERER.getQuality());
+        BATCH_RENDERERS[index].setSpanCaching(RENDERER.isSpanCaching());
+      }
+      return BATCH_RENDERERS[index];
+    }
+
+    /**
+     * Gets the renderer screening draws with. A different quality than the evaluation's gets
+     * its own renderer, since switching a renderer's quality drops its span cache.
+     */
+    private TriangleRenderer getScreeningRenderer(TriangleRenderer.RenderQuality quality)
+    {
+      if (quality == null || quality == RENDERER.getQuality()) return RENDERER;
+      if (screeningRenderer == null)
+      {
+        screeningRenderer = new TriangleRenderer(LEVEL.WIDTH, LEVEL.HEIGHT, RENDERER.getRenderMode());
+      }
+      screeningRenderer.setQuality(quality);
+      screeningRenderer.setSpanCaching(RENDERER.isSpanCaching());
+      return screeningRenderer;
+    }
+
+    private void setQuality(TriangleRenderer.RenderQuality quality)
+    {
+      for (TriangleRenderer renderer : BATCH_RENDERERS)
+      {
+        if (renderer != null) renderer.setQuality(quality);
+      }
+    }
+
+    private void setSpanCaching(boolean enabled)
+    {
+      for (TriangleRenderer renderer : BATCH_RENDERERS)
+      {
+        if (renderer != null) renderer.setSpanCaching(enabled);
+      }
+    }
+
+    /**
+     * Draws a triangle (in genome coordinates) without allocating anything.
+     */
+    private void draw(float[] triangle)
+    {
+      draw(RENDERER, triangle);
+    }
+
+    private void draw(TriangleRenderer renderer, float[] triangle)
+    {
+      MANAGER.setTriangleData(triangle);
+      renderer.renderTriangle(MANAGER.getXCoordinates(X_COORDINATES), MANAGER.getYCoordinates(Y_COORDINATES),
+                              MANAGER.getColor(COLOR));
+    }
+  }
+
+  /**
+   * DataField that reports how many triangles renderers have culled for one reason.
+   *
+   * @author Justin
+   */
+  private static final class CulledTriangles extends DataField<Long>
+  {
+    private final String LOG_TAG;
+    private final TriangleRenderer.CullReason REASON;
+
+    /**
+     * Creates a new data field for culled triangles.
+     * @param dataTag data tag for this field
+     * @param logTag log tag (used to interface with a logging system)
+     * @param reason cull reason to report
+     */
+    public CulledTriangles(String dataTag, String logTag, TriangleRenderer.CullReason reason)
+    {
+      super(dataTag);
+      LOG_TAG = logTag;
+      REASON = reason;
+      data = 0L;
+    }
+
+    @Override
+    public void update(Log log)
+    {
+      data = TriangleRenderer.getCullCount(REASON);
+      if (log != null) log.log(LOG_TAG, getDataTag() + ": %d triangles", getData());
+    }
+  }
+
+  /**
+   * DataField that reports either the hits or the misses of the fitness memo.
+   *
+   * @author Justin
+   */
+  private final class MemoLookups extends DataField<Long>
+  {
+    private final String LOG_TAG;
+    private final boolean COUNT_HITS;
+
+    /**
+     * Creates a new data field for the fitness memo.
+     * @param dataTag data tag for this field
+     * @param logTag log tag (used to interface with a logging system)
+     * @param countHits true to report hits and false to report misses
+     */
+    public MemoLookups(String dataTag, String logTag, boolean countHits)
+    {
+      super(dataTag);
+      LOG_TAG = logTag;
+      COUNT_HITS = countHits;
+      data = 0L;
+    }
+
+    @Override
+    public void update(Log log)
+    {
+      data = COUNT_HITS ? MEMO.getHits() : MEMO.getMisses();
+      if (log != null) log.log(LOG_TAG, getDataTag() + ": %d lookups", getData());
+    }
+  }
+
+  /**
+   * A fitness estimated from part of the image along with its standard error.
+   *
+   * @author Justin
+   */
+  public static final class FitnessEstimate
+  {
+    private final double FITNESS;
+    private final double STANDARD_ERROR;
+
+    private FitnessEstimate(double fitness, double standardError)
+    {
+      FITNESS = fitness;
+      STANDARD_ERROR = standardError;
+    }
+
+    /**
+     * Gets the estimated fitness.
+     * @return estimated fitness
+     */
+    public double getFitness()
+    {
+      return FITNESS;
+    }
+
+    /**
+     * Gets the standard error of the estimate (infinite if it can't be estimated).
+     * @return standard error
+     */
+    public double getStandardError()
+    {
+      return STANDARD_ERROR;
+    }
+
+    /**
+     * Gets the top of the confidence interval that is the given number of standard
+     * errors wide on each side.
+     * @param standardErrors number of standard errors (3 is roughly 99.7% confidence)
+     * @return upper bound of the fitness
+     */
+    public double getUpperBound(double standardErrors)
+    {
+      return FITNESS + standardErrors * STANDARD_ERROR;
+    }
+
+    /**
+     * Gets the bottom of the confidence interval that is the given number of standard
+     * errors wide on each side.
+     * @param standardErrors number of standard errors (3 is roughly 99.7% confidence)
+     * @return lower bound of the fitness
+     */
+    public double getLowerBound(double standardErrors)
+    {
+      return FITNESS - standardErrors * STANDARD_ERROR;
+    }
+  }
+
+  /**
+   * One level of the target pyramid.
+   *
+   * @author Justin
+   */
+  private static final class PyramidLevel
+  {
+    private final int WIDTH, HEIGHT;
+    private final int[] PIXELS; // packed ARGB, row-major
+    private final float SCALE_X, SCALE_Y; // genome coordinates -> pixels
+    // Error of the cleared (opaque black) background against the target, as prefix sums
+    // along each row - row y's sum over [x0, x1) is [y * (WIDTH + 1) + x1] - [y * (WIDTH + 1) + x0]
+    private final long[] BACKGROUND_ERROR;
+
+    private PyramidLevel(int width, int height, int[] pixels, float scaleX, float scaleY)
+    {
+      WIDTH = width;
+      HEIGHT = height;
+      PIXELS = pixels;
+      SCALE_X = scaleX;
+      SCALE_Y = scaleY;
+      BACKGROUND_ERROR = new long[(width + 1) * height];
+      for (int y = 0; y < height; y++)
+      {
+        int offset = y * (width + 1);
+        for (int x = 0; x < width; x++)
+        {
+          int color = pixels[y * width + x];
+          int red = (color >> 16) & 0xFF, green = (color >> 8) & 0xFF, blue = color & 0xFF;
+          BACKGROUND_ERROR[offset + x + 1] = BACKGROUND_ERROR[offset + x] + red * red + green * green + blue * blue;
+        }
+      }
+    }
+
+    /**
+     * Gets the error of the cleared background against the target over [x0, x1) of row y.
+     */
+    private long getBackgroundError(int y, int x0, int x1)
+    {
+      int offset = y * (WIDTH + 1);
+      return BACKGROUND_ERROR[offset + x1] - BACKGROUND_ERROR[offset + x0];
+    }
+
+    /**
+     * Creates the next coarser level by averaging each 2x2 block of pixels (blocks on
+     * the right and bottom edges of odd sized levels average whatever pixels they have).
+     */
+    private PyramidLevel downsample(int fullWidth, int fullHeight)
+    {
+      int width = (WIDTH + 1) / 2;
+      int height = (HEIGHT + 1) / 2;
+      int[] pixels = new int[width * height];
+      for (int y = 0; y < height; y++)
+      {
+        int y0 = y * 2;
+        int y1 = Math.min(y0 + 2, HEIGHT);
+        for (int x = 0; x < width; x++)
+        {
+          int x0 = x * 2;
+          int x1 = Math.min(x0 + 2, WIDTH);
+          int red = 0, green = 0, blue = 0, count = 0;
+          for (int sy = y0; sy < y1; sy++)
+          {
+            for (int sx = x0; sx < x1; sx++)
+            {
+              int color = PIXELS[sy * WIDTH + sx];
+              red += (color >> 16) & 0xFF;
+              green += (color >> 8) & 0xFF;
+              blue += color & 0xFF;
+              count++;
+            }
+          }
+          int half = count / 2; // round to nearest
+          pixels[y * width + x] = 0xFF000000 | ((red + half) / count) << 16 | ((green + half) / count) << 8 |
+                                  (blue + half) / count;
+        }
+      }
+      return new PyramidLevel(width, height, pixels, width / (float)fullWidth, height / (float)fullHeight);
+    }
+  }
+
+  /**
+   * Sets the image that the fitness function compares the genomes to
+   * when calculating their fitness. The image is decoded into a packed
+   * ARGB buffer here so that generateFitness never has to go through
+   * a PixelReader, and the pyramid is rebuilt from it with evaluation
+   * starting over at the coarsest level.
+   *
+   * @param image reference to a valid target image
+   */
+  @Override
+  public void setTargetImage(Image image)
+  {
+    int width = (int)image.getWidth();
+    int height = (int)image.getHeight();
+    int[] pixels = new int[width * height];
+    image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+    try
+    {
+      LOCK.lock();
+      target = image;
+      pyramid = new PyramidLevel[] { new PyramidLevel(width, height, pixels, 1.0f, 1.0f) };
+      buildPyramid();
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Sets how many resolutions the target is evaluated at, counting the full resolution.
+   * Each level is half the width and height of the one above it, so a 4 level pyramid of a
+   * 512 pixel wide target has 512, 256, 128 and 64 pixel levels. Levels that would be
+   * smaller than 32 pixels on a side are left out. Evaluation restarts at the coarsest level
+   * and moves finer through refineResolution. Genome coordinates are scaled down through
+   * TriangleManager while drawing, so genomes themselves always stay in full resolution
+   * coordinates. Defaults to 1, which always evaluates at full resolution.
+   *
+   * @param levels number of pyramid levels (at least 1)
+   */
+  public void setPyramidLevels(int levels)
+  {
+    try
+    {
+      LOCK.lock();
+      maxPyramidLevels = Math.max(levels, 1);
+      if (pyramid.length > 0) buildPyramid();
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Sets when refineResolution moves evaluation to the next finer level: either once the
+   * best fitness reaches the given fitness, or once it has gone the given number of
+   * generations without improving at the current level.
+   *
+   * @param fitness fitness at which to refine
+   * @param stagnantGenerations generations without improvement after which to refine
+   */
+  public void setRefinementSchedule(double fitness, int stagnantGenerations)
+  {
+    try
+    {
+      LOCK.lock();
+      refineFitness = fitness;
+      refineStagnation = Math.max(stagnantGenerations, 1);
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Turns on screening for the bounded generateFitness. Before a genome is fully evaluated,
+   * every rowStride-th row is rendered and scored, and if the estimated fitness plus the given
+   * number of standard errors is still below the minimum, the genome is rejected. The chance
+   * of wrongly rejecting a genome goes down as standardErrors goes up. A genome that isn't
+   * rejected still gets the normal evaluation and its exact fitness. Off by default.
+   *
+   * @param rowStride rows between samples (0 turns screening off)
+   * @param standardErrors how many standard errors above the estimate a genome has to
+   *                       fall short by to be rejected
+   */
+  public void setScreening(int rowStride, double standardErrors)
+  {
+    try
+    {
+      LOCK.lock();
+      screeningStride = Math.max(rowStride, 0);
+      screeningErrors = standardErrors;
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Sets how many genome fitness values are remembered by content hash. Once full, the
+   * least recently used ones are forgotten. Defaults to 65536, and 0 turns the memo off.
+   *
+   * @param entries maximum number of remembered fitness values
+   */
+  public void setFitnessMemoSize(int entries)
+  {
+    MEMO.setCapacity(entries);
+  }
+
+  /**
+   * Adds data fields for the fitness memo's hit and miss counts and for the number of
+   * triangles culled by TriangleRenderer to the given statistics.
+   *
+   * @param statistics statistics object to add to (usually the engine's)
+   */
+  public void addStatistics(Statistics statistics)
+  {
+    statistics.add(new MemoLookups("Fitness Memo Hits", "fitness", true));
+    statistics.add(new MemoLookups("Fitness Memo Misses", "fitness", false));
+    statistics.add(new CulledTriangles("Culled Degenerate Triangles", "render", TriangleRenderer.CullReason.DEGENERATE));
+    statistics.add(new CulledTriangles("Culled Offscreen Triangles", "render", TriangleRenderer.CullReason.OFFSCREEN));
+    statistics.add(new CulledTriangles("Culled Transparent Triangles", "render",
+                                       TriangleRenderer.CullReason.TRANSPARENT));
+  }
+
+  /**
+   * Sets how many bands of rows generateFitness splits each genome into. Bands are drawn and
+   * scored at the same time on a pool of the calculator's own and their errors are added
+   * together, so this is meant for when there are fewer tribes (and so fewer evaluations
+   * running at once) than cores. The pool should only be given the cores the job system's
+   * workers leave over. Defaults to 1, which evaluates on the calling thread only.
+   *
+   * @param bands number of bands to evaluate in parallel (at least 1)
+   * @param threads number of threads in the pool the bands run on (at least 1)
+   */
+  public void setBandParallelism(int bands, int threads)
+  {
+    try
+    {
+      LOCK.lock();
+      bandParallelism = Math.max(bands, 1);
+      // The old pool isn't shut down in case an evaluation is still using it - its idle
+      // workers go away on their own
+      bandPool = bandParallelism > 1 ? new ForkJoinPool(Math.max(threads, 1)) : null;
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Estimates the genome's fitness by only rendering and scoring every rowStride-th row,
+   * starting from one of the first rowStride rows picked by the genome's content hash, so the
+   * same genome is always sampled the same way and screened runs can be reproduced. The
+   * standard error is worked out from the differences between neighboring sampled rows.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to estimate the fitness of
+   * @param rowStride rows between samples (at least 1)
+   * @return fitness estimate
+   */
+  public FitnessEstimate estimateFitness(EvolutionEngine engine, Genome genome, int rowStride)
+  {
+    WorkerScratch scratch = getScratch(level, renderMode, renderQuality);
+    return sampleRows(genome, scratch, scratch.RENDERER, Math.max(rowStride, 1));
+  }
+
+  /**
+   * Checks the refinement schedule against the best fitness of the current generation and
+   * moves evaluation to the next finer pyramid level if it is time. Fitness values from
+   * different levels are not comparable, so when this returns true every genome needs its
+   * fitness regenerated before they are compared again.
+   *
+   * @param bestFitness best fitness in the population
+   * @return true if evaluation moved to a finer level and false if not
+   */
+  @Override
+  public boolean refineResolution(double bestFitness)
+  {
+    try
+    {
+      LOCK.lock();
+      if (level == null || level == pyramid[0]) return false;
+      if (bestFitness > bestAtLevel + MIN_IMPROVEMENT)
+      {
+        bestAtLevel = bestFitness;
+        generationsWithoutImprovement = 0;
+      }
+      else ++generationsWithoutImprovement;
+      if (bestFitness < refineFitness && generationsWithoutImprovement < refineStagnation) return false;
+
+      for (int i = 1; i < pyramid.length; i++)
+      {
+        if (pyramid[i] == level) setLevel(pyramid[i - 1]);
+      }
+      return true;
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Gets the width (in pixels) of the level genomes are currently evaluated at.
+   * @return evaluation width
+   */
+  public int getEvaluationWidth()
+  {
+    return level.WIDTH;
+  }
+
+  /**
+   * Gets the height (in pixels) of the level genomes are currently evaluated at.
+   * @return evaluation height
+   */
+  public int getEvaluationHeight()
+  {
+    return level.HEIGHT;
+  }
+
+  /**
+   * Rebuilds everything past pyramid[0] and starts evaluating at the coarsest level.
+   * Only call while holding LOCK.
+   */
+  private void buildPyramid()
+  {
+    PyramidLevel full = pyramid[0];
+    PyramidLevel[] levels = new PyramidLevel[maxPyramidLevels];
+    levels[0] = full;
+    int numLevels = 1;
+    while (numLevels < maxPyramidLevels && Math.min(levels[numLevels - 1].WIDTH, levels[numLevels - 1].HEIGHT) / 2 >= MIN_PYRAMID_SIZE)
+    {
+      levels[numLevels] = levels[numLevels - 1].downsample(full.WIDTH, full.HEIGHT);
+      ++numLevels;
+    }
+    pyramid = new PyramidLevel[numLevels];
+    System.arraycopy(levels, 0, pyramid, 0, numLevels);
+    setLevel(pyramid[numLevels - 1]);
+  }
+
+  /**
+   * Switches evaluation to the given level. Only call while holding LOCK.
+   */
+  private void setLevel(PyramidLevel newLevel)
+  {
+    level = newLevel;
+    bestAtLevel = 0.0;
+    generationsWithoutImprovement = 0;
+    clearRenderCaches();
+    MEMO.clear();
+  }
+
+  /**
+   * Sets the mode that triangles are drawn with during fitness evaluation. Defaults to
+   * RenderMode.FIXED_POINT, which gives the same fitness values on every machine. Any
+   * renderers created with the previous mode are discarded.
+   *
+   * @param mode render mode to use for future evaluations
+   */
+  public void setRenderMode(TriangleRenderer.RenderMode mode)
+  {
+    try
+    {
+      LOCK.lock();
+      renderMode = mode;
+      clearRenderCaches();
+      MEMO.clear();
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Sets how much work goes into antialiasing triangle edges during fitness evaluation (see
+   * TriangleRenderer.RenderQuality). Defaults to RenderQuality.NONE, which is the cheapest
+   * and is enough for most of evolution. Cached renders and remembered fitness values from
+   * the previous quality are discarded.
+   *
+   * @param quality render quality to use for future evaluations
+   */
+  public void setRenderQuality(TriangleRenderer.RenderQuality quality)
+  {
+    try
+    {
+      LOCK.lock();
+      renderQuality = quality;
+      clearRenderCaches();
+      MEMO.clear();
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Sets the render quality that screening (see setScreening) draws its sample rows with,
+   * so that genomes can be screened with a cheap tier and scored with an expensive one.
+   * Estimates from a different tier than the evaluation are slightly biased, so leave some
+   * extra standard errors when using this. By default screening uses the evaluation's quality.
+   *
+   * @param quality render quality for screening, or null to use the evaluation's quality
+   */
+  public void setScreeningQuality(TriangleRenderer.RenderQuality quality)
+  {
+    screeningQuality = quality;
+  }
+
+  /**
+   * Sets whether the renderers genomes are evaluated with remember the rows each triangle
+   * covered, keyed by its vertices (see TriangleRenderer.setSpanCaching). Mutated copies of a
+   * genome share most of their triangles, and triangles that only had their color changed
+   * keep their vertices, so most triangles are then only blended. Results are the same either
+   * way. Defaults to true.
+   *
+   * @param enabled true to cache triangle rows
+   */
+  public void setSpanCaching(boolean enabled)
+  {
+    spanCaching = enabled;
+  }
+
+  /**
+   * Sets whether full evaluations only compare the pixels the genome's triangles can touch
+   * against the target and add the precomputed background error for the rest (pixels no
+   * triangle touches are always the cleared background). The result is
+   * exactly the same either way, so this is only useful for comparing timings. Screening and
+   * batch evaluations always scan every pixel. Defaults to true.
+   *
+   * @param enabled true to score only covered pixels, false to scan every pixel
+   */
+  public void setCoverageScoring(boolean enabled)
+  {
+    coverageScoring = enabled;
+  }
+
+  /**
+   * Sets the maximum number of bytes that can be spent on keeping genome renders around for
+   * generateDeltaFitness. Once over budget, the least recently used renders are dropped, but
+   * the most recent one is always kept. A 512x413 target with the default checkpoint interval
+   * costs roughly 7 MB per genome. Defaults to 64 MB.
+   *
+   * @param bytes memory budget in bytes
+   */
+  public void setRenderCacheBudget(long bytes)
+  {
+    try
+    {
+      LOCK.lock();
+      renderCacheBudget = Math.max(bytes, 0);
+      evictRenderCaches();
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
+  }
 
-  @Override
-  public void setTargetImage(Image image)
+  /**
+   * Sets how many triangles apart the partial composites kept for generateDeltaFitness
+   * are. Smaller intervals mean less redrawing after a change but more memory per genome.
+   * Defaults to 25, and 0 disables checkpoints.
+   *
+   * @param interval number of triangles between checkpoints (0 for none)
+   */
+  public void setCheckpointInterval(int interval)
   {
-    target = image;
+    try
+    {
+      LOCK.lock();
+      checkpointInterval = Math.max(interval, 0);
+      clearRenderCaches();
+    }
+    finally
+    {
+      LOCK.unlock();
+    }
   }
 
   /**
@@ -52,63 +786,728 @@ public class FitnessCalculator implements FitnessFunction
   @Override
   public double generateFitness(EvolutionEngine engine, Genome genome)
   {
-    TriangleRenderer renderer;
+    return generateFitness(engine, genome, Double.NEGATIVE_INFINITY);
+  }
+
+  /**
+   * Works the same as generateFitness(engine, genome), but if minFitness is above 0 the genome
+   * is rendered and scored in bands of rows and REJECTED is returned as soon as its error is
+   * too high for it to reach minFitness.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to generate a fitness for
+   * @param minFitness lowest fitness the caller is interested in
+   * @return normalized fitness for the given genome, or REJECTED if it is below minFitness
+   */
+  @Override
+  public double generateFitness(EvolutionEngine engine, Genome genome, double minFitness)
+  {
+    long contentHash = genome.getContentHash();
+    int memoEpoch = MEMO.getEpoch();
+    Double memoFitness = MEMO.get(contentHash);
+    if (memoFitness != null) return memoFitness;
+
+    double fitness = evaluate(genome, level, renderMode, renderQuality, minFitness);
+    if (fitness != REJECTED) MEMO.put(contentHash, fitness, memoEpoch);
+    return fitness;
+  }
+
+  /**
+   * Generates the fitness of every genome in the list. Genomes that are not in the memo
+   * are drawn MAX_BATCH_RENDERERS at a time, each into its own renderer, one band of rows
+   * at a time, and every band of the target is then compared against all of their renders
+   * in a single pass.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genomes genomes to generate a fitness for
+   * @param out array with at least genomes.size() elements to hold the results
+   */
+  @Override
+  public void generateFitness(EvolutionEngine engine, List<Genome> genomes, double[] out)
+  {
+    generateBatch(genomes, out, Double.NEGATIVE_INFINITY, false);
+  }
+
+  /**
+   * Works the same as generateFitness(engine, genomes, out), but the first genome that has
+   * to be drawn is evaluated on its own, and its fitness (or minFitness, if higher) becomes
+   * the bound for the rest. Genomes in a batch stop being drawn as soon as their error
+   * passes the bound, and the bound is raised after every batch.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genomes genomes to generate a fitness for
+   * @param out array with at least genomes.size() elements to hold the results
+   * @param minFitness lowest fitness the caller is interested in
+   */
+  @Override
+  public void generateFitness(EvolutionEngine engine, List<Genome> genomes, double[] out, double minFitness)
+  {
+    generateBatch(genomes, out, minFitness, true);
+  }
+
+  /**
+   * Evaluates a genome that is not in the memo (see generateFitness(engine, genome, minFitness)).
+   */
+  private double evaluate(Genome genome, PyramidLevel evaluationLevel, TriangleRenderer.RenderMode mode,
+                          TriangleRenderer.RenderQuality quality, double minFitness)
+  {
+    int stride = screeningStride;
+    double standardErrors = screeningErrors;
+    boolean coverage = coverageScoring;
+    int bands = Math.min(bandParallelism, (evaluationLevel.HEIGHT + SCORE_BAND_HEIGHT - 1) / SCORE_BAND_HEIGHT);
+    ForkJoinPool pool = bandPool;
+    WorkerScratch scratch = getScratch(evaluationLevel, mode, quality);
+    int numPixels = evaluationLevel.WIDTH * evaluationLevel.HEIGHT;
+    long maxError = maxError(minFitness, numPixels);
+
+    if (maxError != Long.MAX_VALUE && stride > 0)
+    {
+      FitnessEstimate estimate = sampleRows(genome, scratch, scratch.getScreeningRenderer(screeningQuality), stride);
+      if (estimate.getUpperBound(standardErrors) < minFitness) return REJECTED;
+    }
+    if (bands > 1 && pool != null)
+    {
+      long error = renderParallel(pool, genome, evaluationLevel, mode, quality, coverage, bands, maxError);
+      return error == GenomeRenderCache.REJECTED_ERROR ? REJECTED : normalize(error, numPixels);
+    }
+    else if (maxError == Long.MAX_VALUE)
+    {
+      TriangleRenderer renderer = scratch.RENDERER;
+      renderer.clear();
+      for (float[] triangle : genome.getTriangles()) scratch.draw(triangle);
+      renderer.markComplete();
+      if (!coverage) return normalize(sumSquaredError(evaluationLevel.PIXELS, renderer.getPixels(), 0, numPixels), numPixels);
+      findCoverage(genome, scratch, 0, evaluationLevel.HEIGHT);
+      return normalize(scoreRows(scratch, renderer, 0, evaluationLevel.HEIGHT), numPixels);
+    }
+    long error = renderBanded(genome, scratch, coverage, maxError);
+    return error == GenomeRenderCache.REJECTED_ERROR ? REJECTED : normalize(error, numPixels);
+  }
+
+  /**
+   * Does the work for both batch versions of generateFitness. If bestOnly is true, minFitness
+   * is raised to the best fitness found so far as the genomes are evaluated.
+   */
+  private void generateBatch(List<Genome> genomes, double[] out, double minFitness, boolean bestOnly)
+  {
+    PyramidLevel evaluationLevel = level;
+    TriangleRenderer.RenderMode mode = renderMode;
+    TriangleRenderer.RenderQuality quality = renderQuality;
+    int numPixels = evaluationLevel.WIDTH * evaluationLevel.HEIGHT;
+    int memoEpoch = MEMO.getEpoch();
+    // Genomes that have to be drawn, by index into genomes
+    int[] pending = new int[genomes.size()];
+    long[] contentHashes = new long[genomes.size()];
+    int numPending = 0;
+    for (int i = 0; i < genomes.size(); i++)
+    {
+      contentHashes[i] = genomes.get(i).getContentHash();
+      Double memoFitness = MEMO.get(contentHashes[i]);
+      if (memoFitness == null) pending[numPending++] = i;
+      else
+      {
+        out[i] = memoFitness;
+        if (bestOnly) minFitness = Math.max(minFitness, memoFitness);
+      }
+    }
+
+    // Screening (which only bounded batches do) and band parallelism both work on one genome
+    // at a time, and a bounded batch needs one genome's fitness before it has a bound worth using
+    int first = 0;
+    boolean screening = screeningStride > 0 && (bestOnly || minFitness > 0.0);
+    boolean oneAtATime = screening || bandParallelism > 1;
+    while (first < numPending && (oneAtATime || (bestOnly && !(minFitness > 0))))
+    {
+      int index = pending[first++];
+      out[index] = evaluate(genomes.get(index), evaluationLevel, mode, quality, minFitness);
+      if (out[index] != REJECTED) MEMO.put(contentHashes[index], out[index], memoEpoch);
+      if (bestOnly) minFitness = Math.max(minFitness, out[index]);
+    }
+
+    WorkerScratch scratch = getScratch(evaluationLevel, mode, quality);
+    long[] errors = new long[MAX_BATCH_RENDERERS];
+    Genome[] batch = new Genome[MAX_BATCH_RENDERERS];
+    for (int start = first; start < numPending; start += MAX_BATCH_RENDERERS)
+    {
+      int count = Math.min(MAX_BATCH_RENDERERS, numPending - start);
+      for (int i = 0; i < count; i++) batch[i] = genomes.get(pending[start + i]);
+      renderBatch(batch, count, scratch, maxError(minFitness, numPixels), errors);
+      for (int i = 0; i < count; i++)
+      {
+        int index = pending[start + i];
+        out[index] = errors[i] == GenomeRenderCache.REJECTED_ERROR ? REJECTED : normalize(errors[i], numPixels);
+        if (out[index] != REJECTED) MEMO.put(contentHashes[index], out[index], memoEpoch);
+        if (bestOnly) minFitness = Math.max(minFitness, out[index]);
+      }
+    }
+  }
+
+  /**
+   * Gets the calling thread's scratch, replacing it first if it was made for a different
+   * level or render mode, and setting its renderers to the given quality.
+   */
+  private WorkerScratch getScratch(PyramidLevel evaluationLevel, TriangleRenderer.RenderMode mode,
+                                   TriangleRenderer.RenderQuality quality)
+  {
+    WorkerScratch scratch = SCRATCH.get();
+    if (scratch == null || scratch.LEVEL != evaluationLevel || scratch.RENDERER.getRenderMode() != mode)
+    {
+      scratch = new WorkerScratch(evaluationLevel, mode, quality);
+      SCRATCH.set(scratch);
+    }
+    else if (scratch.RENDERER.getQuality() != quality) scratch.setQuality(quality);
+    if (scratch.RENDERER.isSpanCaching() != spanCaching) scratch.setSpanCaching(spanCaching);
+    return scratch;
+  }
+
+  /**
+   * Works the same as generateFitness, but keeps the genome's render and per-tile error
+   * around afterwards. The next call for the same genome compares its triangles against
+   * the ones that were rendered last time and only recomposites and rescores the area
+   * covered by the ones that changed (both where they were and where they are now),
+   * starting from the last checkpoint below the first changed triangle (see
+   * setCheckpointInterval). How many genomes are kept is bounded by setRenderCacheBudget.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to generate a fitness for
+   * @return normalized fitness for the given genome
+   */
+  @Override
+  public double generateDeltaFitness(EvolutionEngine engine, Genome genome)
+  {
+    return generateDeltaFitness(engine, genome, Double.NEGATIVE_INFINITY);
+  }
+
+  /**
+   * Works the same as generateDeltaFitness(engine, genome), but stops rescoring tiles and
+   * returns REJECTED once the error is too high for the genome to reach minFitness. The
+   * render is still brought up to date, so the genome keeps its cache either way.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to generate a fitness for
+   * @param minFitness lowest fitness the caller is interested in
+   * @return normalized fitness for the given genome, or REJECTED if it is below minFitness
+   */
+  @Override
+  public double generateDeltaFitness(EvolutionEngine engine, Genome genome, double minFitness)
+  {
+    long contentHash = genome.getContentHash();
+    int memoEpoch = MEMO.getEpoch();
+    Double memoFitness = MEMO.get(contentHash);
+    if (memoFitness != null) return memoFitness;
+
+    PyramidLevel evaluationLevel = level;
+    TriangleRenderer.RenderMode mode = renderMode;
+    TriangleRenderer.RenderQuality quality = renderQuality;
+    int interval = checkpointInterval;
+    int width = evaluationLevel.WIDTH;
+    int height = evaluationLevel.HEIGHT;
+    float scaleX = evaluationLevel.SCALE_X;
+    float scaleY = evaluationLevel.SCALE_Y;
+    GenomeRenderCache cache = checkOutRenderCache(genome.getID());
+    if (cache == null || !cache.isCompatible(width, height, scaleX, scaleY, mode, quality, interval))
+    {
+      cache = new GenomeRenderCache(width, height, scaleX, scaleY, mode, quality, interval);
+    }
+
+    long error = cache.update(genome, evaluationLevel.PIXELS, maxError(minFitness, width * height));
+    double fitness = error == GenomeRenderCache.REJECTED_ERROR ? REJECTED : normalize(error, width * height);
+    if (fitness != REJECTED) MEMO.put(contentHash, fitness, memoEpoch);
+
+    cache.setLastUsed(RENDER_CACHE_CLOCK.incrementAndGet());
+    checkInRenderCache(cache);
+    return fitness;
+  }
+
+  /**
+   * Gets a copy of the per-tile squared error of the given genome as of its last
+   * generateDeltaFitness call. Tiles are ERROR_TILE_SIZE pixels square and are stored
+   * row-major, so tile (column, row) is at row * ceil(getEvaluationWidth() / ERROR_TILE_SIZE) + column.
+   *
+   * @param genome genome to get the error map for
+   * @return tile errors, or null if the genome is not cached (or is being evaluated right now)
+   */
+  public long[] getTileErrors(Genome genome)
+  {
+    GenomeRenderCache cache = checkOutRenderCache(genome.getID());
+    if (cache == null) return null;
+    long[] tileErrors = cache.getTileErrors().clone();
+    checkInRenderCache(cache);
+    return tileErrors;
+  }
+
+  /**
+   * Finds which triangles of the given genome can touch any pixel in the given rectangle, as
+   * of its last generateDeltaFitness call. Coordinates are in evaluation pixels, the same as
+   * getTileErrors, so passing a tile's bounds gives the triangles that affect its error. The
+   * genome's render cache keeps a bin index of its triangles, so this doesn't have to look
+   * at every triangle.
+   *
+   * @param genome genome to look in
+   * @param x left edge of the rectangle (in pixels)
+   * @param y top edge of the rectangle (in pixels)
+   * @param width width of the rectangle (in pixels)
+   * @param height height of the rectangle (in pixels)
+   * @return indices of the triangles (in the order they are drawn), or null if the genome
+   *         is not cached (or is being evaluated right now)
+   */
+  public int[] getTrianglesOverlapping(Genome genome, int x, int y, int width, int height)
+  {
+    GenomeRenderCache cache = checkOutRenderCache(genome.getID());
+    if (cache == null) return null;
+    int[] triangles = cache.getTrianglesOverlapping(x, y, x + width, y + height);
+    checkInRenderCache(cache);
+    return triangles;
+  }
+
+  /**
+   * Sets the red, green and blue genes of one of the genome's triangles to the least squares
+   * best color for its shape and alpha (see ColorSolver). The color is solved against the
+   * pyramid level genomes are currently evaluated at and drawn with the current render mode
+   * and quality, so it fits the image the genome is scored against.
+   *
+   * @param genome genome the triangle belongs to
+   * @param triangle triangle to solve (must be one of the genome's own arrays)
+   * @return false if the triangle covers no pixels or is fully transparent, in which case
+   *         its genes are left alone
+   */
+  public boolean solveColor(Genome genome, float[] triangle)
+  {
+    PyramidLevel evaluationLevel = level;
+    COLOR_SOLVER.setTarget(evaluationLevel.PIXELS, evaluationLevel.WIDTH, evaluationLevel.HEIGHT,
+                           evaluationLevel.SCALE_X, evaluationLevel.SCALE_Y, renderMode, renderQuality);
+    return COLOR_SOLVER.solve(genome, triangle);
+  }
+
+  /**
+   * Takes the genome's render cache out of RENDER_CACHES. Caches are only ever used while
+   * checked out, so no two threads can use the same one and nothing has to be locked.
+   *
+   * @return the genome's cache, or null if it has none or another thread has it checked out
+   */
+  private GenomeRenderCache checkOutRenderCache(int genomeID)
+  {
+    GenomeRenderCache cache = RENDER_CACHES.remove(genomeID);
+    if (cache != null) RENDER_CACHE_BYTES.addAndGet(-cache.getMemoryUsage());
+    return cache;
+  }
+
+  /**
+   * Puts a checked out cache back, unless the settings changed while it was out and it can't
+   * be used anymore, and evicts caches if that goes over budget. A cache that was checked in
+   * while the settings were changing is caught by the isCompatible check at checkout.
+   */
+  private void checkInRenderCache(GenomeRenderCache cache)
+  {
+    PyramidLevel current = level;
+    if (!cache.isCompatible(current.WIDTH, current.HEIGHT, current.SCALE_X, current.SCALE_Y, renderMode,
+                            renderQuality, checkpointInterval)) return;
+    RENDER_CACHE_BYTES.addAndGet(cache.getMemoryUsage());
+    GenomeRenderCache previous = RENDER_CACHES.put(cache.getGenomeID(), cache);
+    if (previous != null) RENDER_CACHE_BYTES.addAndGet(-previous.getMemoryUsage());
+    if (RENDER_CACHE_BYTES.get() > renderCacheBudget) evictRenderCaches();
+  }
+
+  /**
+   * Drops the least recently used genome renders until the cache is within budget, always
+   * leaving at least one. Only one thread evicts at a time - the others carry on without
+   * waiting since it is already being taken care of.
+   */
+  private void evictRenderCaches()
+  {
+    if (!EVICTION_LOCK.tryLock()) return;
     try
     {
-      LOCK.lock();
-      if (renderList.size() == 0) renderList.add(new TriangleRenderer(engine.getGUI().getImageWidth(),
-                                                                    engine.getGUI().getImageHeight()));
-      renderer = renderList.pop();
+      while (RENDER_CACHE_BYTES.get() > renderCacheBudget && RENDER_CACHES.size() > 1)
+      {
+        GenomeRenderCache oldest = null;
+        for (GenomeRenderCache cache : RENDER_CACHES.values())
+        {
+          if (oldest == null || cache.getLastUsed() < oldest.getLastUsed()) oldest = cache;
+        }
+        if (oldest == null) break;
+        // Fails if another thread checked it out in the meantime, in which case look again
+        if (RENDER_CACHES.remove(oldest.getGenomeID(), oldest))
+        {
+          RENDER_CACHE_BYTES.addAndGet(-oldest.getMemoryUsage());
+        }
+      }
     }
     finally
     {
-      LOCK.unlock();
+      EVICTION_LOCK.unlock();
     }
-    TriangleManager manager = new TriangleManager();
+  }
 
-    renderer.clear();
+  /**
+   * Drops every cached genome render. Caches that are checked out right now are dropped
+   * when they are checked back in.
+   */
+  private void clearRenderCaches()
+  {
+    for (Integer genomeID : RENDER_CACHES.keySet()) checkOutRenderCache(genomeID);
+  }
 
-    Collection<float[]> triangles = genome.getTriangles();
-    GUI gui = engine.getGUI();
-    for (float[] triangle : triangles)
+  /**
+   * Renders the genome one band of SCORE_BAND_HEIGHT rows at a time (only drawing the
+   * triangles that reach into the band) and adds each band's error to the total as it goes.
+   * If coverage is true, each band is scored with scoreRows instead of a full scan.
+   *
+   * @return sum of squared channel differences, or GenomeRenderCache.REJECTED_ERROR as soon
+   *         as it is greater than maxError
+   */
+  private static long renderBanded(Genome genome, WorkerScratch scratch, boolean coverage, long maxError)
+  {
+    PyramidLevel level = scratch.LEVEL;
+    TriangleRenderer renderer = scratch.RENDERER;
+    long error = 0;
+    int width = level.WIDTH;
+    if (coverage) findCoverage(genome, scratch, 0, level.HEIGHT);
+    for (int y0 = 0; y0 < level.HEIGHT && error <= maxError; y0 += SCORE_BAND_HEIGHT)
     {
-      manager.setTriangleData(gui, triangle);
-      renderer.renderTriangle(manager.getXCoordinates(), manager.getYCoordinates(), manager.getColor());
+      int y1 = Math.min(y0 + SCORE_BAND_HEIGHT, level.HEIGHT);
+      renderRows(genome, scratch, y0, y1);
+      if (coverage) error += scoreRows(scratch, renderer, y0, y1);
+      else error += sumSquaredError(level.PIXELS, renderer.getPixels(), y0 * width, y1 * width);
     }
+    renderer.clearClip();
     renderer.markComplete();
+    return error > maxError ? GenomeRenderCache.REJECTED_ERROR : error;
+  }
 
-    PixelReader reader = target.getPixelReader();
-    int width = engine.getGUI().getImageWidth();
-    int height = engine.getGUI().getImageHeight();
-    double fitness = 0.0;
-    int offset = 1;
-    for (int x = 0; x < width; x+=offset)
+  /**
+   * Renders the first count genomes side by side, one band of SCORE_BAND_HEIGHT rows at a
+   * time with a renderer each, and scores each band of all of them in one pass over the
+   * target. A genome stops being drawn once its error is greater than maxError.
+   *
+   * @param errors gets each genome's sum of squared channel differences, or
+   *               GenomeRenderCache.REJECTED_ERROR if it is greater than maxError
+   */
+  private static void renderBatch(Genome[] genomes, int count, WorkerScratch scratch, long maxError, long[] errors)
+  {
+    PyramidLevel level = scratch.LEVEL;
+    int width = level.WIDTH;
+    int[][] renders = new int[count][];
+    Arrays.fill(errors, 0, count, 0);
+    int numDrawing = count;
+    for (int y0 = 0; y0 < level.HEIGHT && numDrawing > 0; y0 += SCORE_BAND_HEIGHT)
     {
-      for (int y = 0;y < height; y+=offset)
+      int y1 = Math.min(y0 + SCORE_BAND_HEIGHT, level.HEIGHT);
+      for (int i = 0; i < count; i++)
+      {
+        if (errors[i] > maxError) continue;
+        TriangleRenderer renderer = scratch.getBatchRenderer(i);
+        renderRows(genomes[i], scratch, renderer, y0, y1);
+        renders[i] = renderer.getPixels();
+      }
+      sumSquaredErrors(level.PIXELS, renders, count, y0 * width, y1 * width, errors);
+      for (int i = 0; i < count; i++)
       {
-        float[] targetImg = TriangleRenderer.unpackData(reader.getArgb(x, y));
-        float[] genomeImg = TriangleRenderer.unpackData(renderer.getPackedARGB(x, y));
-        float redDiff = targetImg[0] - genomeImg[0];
-        float greenDiff = targetImg[1] - genomeImg[1];
-        float blueDiff = targetImg[2] - genomeImg[2];
-        if (redDiff > 255 || blueDiff > 255 || greenDiff > 255) System.out.println("true");
-        fitness += (redDiff * redDiff + greenDiff * greenDiff + blueDiff * blueDiff);// + alphaDiff * alphaDiff;
+        if (renders[i] != null && errors[i] > maxError)
+        {
+          renders[i] = null;
+          numDrawing--;
+        }
       }
     }
-    //fitness = 1.0 - fitness / ((width / offset) * (height / offset) * 3 * 256);
-    fitness = 1.0 - fitness / (width * height * 3 * 256.0 * 256.0);
-    //fitness = width * height * 3 * 256.0 * 256.0 - fitness;
-    //System.out.println(fitness);
-    try
+    for (int i = 0; i < count; i++)
     {
-      LOCK.lock();
-      renderList.add(renderer);
+      TriangleRenderer renderer = scratch.getBatchRenderer(i);
+      renderer.clearClip();
+      renderer.markComplete();
+      if (errors[i] > maxError) errors[i] = GenomeRenderCache.REJECTED_ERROR;
     }
-    finally
+  }
+
+  /**
+   * Splits the image into the given number of bands of rows and draws and scores them on
+   * the given pool, each with the scratch of whichever thread runs it. Each band
+   * works through its rows SCORE_BAND_HEIGHT at a time, adding to a shared total, and all
+   * of them stop once the total goes over maxError.
+   *
+   * @return sum of squared channel differences, or GenomeRenderCache.REJECTED_ERROR if it is
+   *         greater than maxError
+   */
+  private long renderParallel(ForkJoinPool pool, Genome genome, PyramidLevel level,
+                              TriangleRenderer.RenderMode mode, TriangleRenderer.RenderQuality quality,
+                              boolean coverage, int numBands, long maxError)
+  {
+    AtomicLong error = new AtomicLong(0);
+    ArrayList<RecursiveAction> bands = new ArrayList<>(numBands);
+    // Bands start on multiples of SCORE_BAND_HEIGHT like renderBanded's do - Java2D's
+    // antialiasing can come out slightly different depending on where a clip starts
+    int numChunks = (level.HEIGHT + SCORE_BAND_HEIGHT - 1) / SCORE_BAND_HEIGHT;
+    for (int i = 0; i < numBands; i++)
     {
-      LOCK.unlock();
+      final int BAND_START = numChunks * i / numBands * SCORE_BAND_HEIGHT;
+      final int BAND_END = Math.min(numChunks * (i + 1) / numBands * SCORE_BAND_HEIGHT, level.HEIGHT);
+      bands.add(new RecursiveAction()
+      {
+        @Override
+        protected void compute()
+        {
+          WorkerScratch scratch = getScratch(level, mode, quality);
+          TriangleRenderer renderer = scratch.RENDERER;
+          if (coverage) findCoverage(genome, scratch, BAND_START, BAND_END);
+          for (int y0 = BAND_START; y0 < BAND_END && error.get() <= maxError; y0 += SCORE_BAND_HEIGHT)
+          {
+            int y1 = Math.min(y0 + SCORE_BAND_HEIGHT, BAND_END);
+            renderRows(genome, scratch, y0, y1);
+            if (coverage) error.addAndGet(scoreRows(scratch, renderer, y0, y1));
+            else error.addAndGet(sumSquaredError(level.PIXELS, renderer.getPixels(), y0 * level.WIDTH, y1 * level.WIDTH));
+          }
+          renderer.clearClip();
+          renderer.markComplete();
+        }
+      });
     }
-    return fitness;
+    pool.invoke(new RecursiveAction()
+    {
+      @Override
+      protected void compute()
+      {
+        invokeAll(bands);
+      }
+    });
+    return error.get() > maxError ? GenomeRenderCache.REJECTED_ERROR : error.get();
+  }
+
+  /**
+   * Renders and scores every stride-th row of the genome (starting from a row picked by its
+   * content hash) with the given renderer, and estimates the fitness of the whole image from
+   * them.
+   */
+  private static FitnessEstimate sampleRows(Genome genome, WorkerScratch scratch, TriangleRenderer renderer, int stride)
+  {
+    PyramidLevel level = scratch.LEVEL;
+    int width = level.WIDTH;
+    int height = level.HEIGHT;
+    int numRows = 0;
+    double sum = 0.0;
+    double sumOfSquaredSteps = 0.0; // squared differences between neighboring sampled rows
+    double previousRowError = 0.0;
+    for (int y = (int)Math.floorMod(genome.getContentHash(), (long)Math.min(stride, height)); y < height; y += stride)
+    {
+      renderRows(genome, scratch, renderer, y, y + 1);
+      double rowError = sumSquaredError(level.PIXELS, renderer.getPixels(), y * width, (y + 1) * width);
+      if (numRows > 0) sumOfSquaredSteps += (rowError - previousRowError) * (rowError - previousRowError);
+      sum += rowError;
+      previousRowError = rowError;
+      numRows++;
+    }
+    renderer.clearClip();
+    renderer.markComplete();
+
+    double maxError = width * (double)height * 3 * 256.0 * 256.0;
+    double meanRowError = sum / numRows;
+    if (numRows < 2) return new FitnessEstimate(1.0 - meanRowError * height / maxError, Double.POSITIVE_INFINITY);
+    // The rows are evenly spaced rather than independent, so the variance comes from the
+    // differences between neighboring samples - this keeps smooth changes in error from one
+    // side of the image to the other from counting as noise
+    double variance = sumOfSquaredSteps / (2.0 * (numRows - 1));
+    // Standard error of the estimated total, with the finite population correction
+    double standardError = height * Math.sqrt(variance / numRows * (1.0 - numRows / (double)height));
+    return new FitnessEstimate(1.0 - meanRowError * height / maxError, standardError / maxError);
+  }
+
+  /**
+   * Clips the scratch's renderer to rows [y0, y1), clears them and draws the triangles that
+   * reach into them.
+   */
+  private static void renderRows(Genome genome, WorkerScratch scratch, int y0, int y1)
+  {
+    renderRows(genome, scratch, scratch.RENDERER, y0, y1);
+  }
+
+  /**
+   * Same as renderRows(genome, scratch, y0, y1), but draws with one of the scratch's batch
+   * renderers.
+   */
+  private static void renderRows(Genome genome, WorkerScratch scratch, TriangleRenderer renderer, int y0, int y1)
+  {
+    PyramidLevel level = scratch.LEVEL;
+    renderer.setClip(0, y0, level.WIDTH, y1 - y0);
+    renderer.clear();
+    for (float[] triangle : genome.getTriangles())
+    {
+      // Same margins as GenomeRenderCache uses to cover antialiasing
+      int top = (int)(Math.min(triangle[1], Math.min(triangle[3], triangle[5])) * level.SCALE_Y) - 1;
+      int bottom = (int)(Math.max(triangle[1], Math.max(triangle[3], triangle[5])) * level.SCALE_Y) + 2;
+      if (bottom <= y0 || top >= y1) continue;
+      scratch.draw(renderer, triangle);
+    }
+  }
+
+  /**
+   * Works out, for each row in [y0, y1) of the scratch's level, the columns [ROW_START, ROW_END)
+   * that any of the genome's triangles can touch. It uses each triangle's bounding box with
+   * the same margins as renderRows, so every pixel outside a row's range is guaranteed to
+   * still be the cleared background once the genome is drawn. Rows no triangle reaches get
+   * an empty range.
+   */
+  private static void findCoverage(Genome genome, WorkerScratch scratch, int y0, int y1)
+  {
+    PyramidLevel level = scratch.LEVEL;
+    int[] rowStart = scratch.ROW_START;
+    int[] rowEnd = scratch.ROW_END;
+    Arrays.fill(rowStart, y0, y1, level.WIDTH);
+    Arrays.fill(rowEnd, y0, y1, 0);
+    for (float[] triangle : genome.getTriangles())
+    {
+      int top = Math.max((int)(Math.min(triangle[1], Math.min(triangle[3], triangle[5])) * level.SCALE_Y) - 1, y0);
+      int bottom = Math.min((int)(Math.max(triangle[1], Math.max(triangle[3], triangle[5])) * level.SCALE_Y) + 2, y1);
+      int left = Math.max((int)(Math.min(triangle[0], Math.min(triangle[2], triangle[4])) * level.SCALE_X) - 1, 0);
+      int right = Math.min((int)(Math.max(triangle[0], Math.max(triangle[2], triangle[4])) * level.SCALE_X) + 2,
+                           level.WIDTH);
+      if (top >= bottom || left >= right) continue;
+      for (int y = top; y < bottom; y++)
+      {
+        if (left < rowStart[y]) rowStart[y] = left;
+        if (right > rowEnd[y]) rowEnd[y] = right;
+      }
+    }
+  }
+
+  /**
+   * Scores rows [y0, y1) of the renderer's pixels using the ranges from findCoverage: only
+   * each row's covered columns are compared against the target, and the level's precomputed
+   * background error is added for the rest. Gives exactly what sumSquaredError would over the
+   * same rows.
+   *
+   * @return sum of squared channel differences over the rows
+   */
+  private static long scoreRows(WorkerScratch scratch, TriangleRenderer renderer, int y0, int y1)
+  {
+    PyramidLevel level = scratch.LEVEL;
+    int[] pixels = renderer.getPixels();
+    int width = level.WIDTH;
+    long error = 0;
+    for (int y = y0; y < y1; y++)
+    {
+      int start = scratch.ROW_START[y];
+      int end = scratch.ROW_END[y];
+      if (start >= end)
+      {
+        error += level.getBackgroundError(y, 0, width);
+        continue;
+      }
+      error += level.getBackgroundError(y, 0, start) + level.getBackgroundError(y, end, width);
+      error += sumSquaredError(level.PIXELS, pixels, y * width + start, y * width + end);
+    }
+    return error;
+  }
+
+  /**
+   * Gets the largest error a genome can have and still reach minFitness, or Long.MAX_VALUE if
+   * there is no limit. The extra 1 keeps rounding from rejecting a genome that would tie.
+   */
+  private static long maxError(double minFitness, int numPixels)
+  {
+    if (!(minFitness > 0.0)) return Long.MAX_VALUE;
+    return (long)Math.floor((1.0 - minFitness) * numPixels * 3 * 256.0 * 256.0) + 1;
+  }
+
+  /**
+   * Turns a sum of squared channel differences into a fitness on the range of [0.0, 1.0].
+   */
+  private static double normalize(long error, int numPixels)
+  {
+    return 1.0 - error / (numPixels * 3 * 256.0 * 256.0);
+  }
+
+  /**
+   * Sums the squared difference of the red, green and blue channels over the pixels
+   * in [from, to) of both buffers. Both are expected to be packed ARGB and laid
+   * out row-major with the same width.
+   *
+   * Unless the scalar kernel was asked for at startup, the pixels are summed in blocks of
+   * ERROR_BLOCK_SIZE with an int accumulator. That keeps the inner loop to plain int
+   * operations, which the JIT can turn into SIMD instructions.
+   *
+   * @param target packed target pixels
+   * @param genome packed pixels rendered from a genome
+   * @param from index of the first pixel to compare
+   * @param to index one past the last pixel to compare
+   * @return sum of squared channel differences
+   */
+  static long sumSquaredError(int[] target, int[] genome, int from, int to)
+  {
+    if (USE_SCALAR_ERROR_KERNEL) return sumSquaredErrorScalar(target, genome, from, to);
+    long error = 0;
+    for (int blockStart = from; blockStart < to; blockStart += ERROR_BLOCK_SIZE)
+    {
+      error += blockError(target, genome, blockStart, Math.min(blockStart + ERROR_BLOCK_SIZE, to));
+    }
+    return error;
+  }
+
+  /**
+   * Works the same as sumSquaredError for several genomes at once, adding genome i's error over
+   * [from, to) to errors[i]. The blocks are taken in the outer loop, so each block of the
+   * target is still in cache when it is compared against the rest of the genomes.
+   *
+   * @param target packed target pixels
+   * @param genomes packed pixels rendered from each genome (null entries are skipped)
+   * @param count number of genomes
+   * @param from index of the first pixel to compare
+   * @param to index one past the last pixel to compare
+   * @param errors running error of each genome
+   */
+  static void sumSquaredErrors(int[] target, int[][] genomes, int count, int from, int to, long[] errors)
+  {
+    if (USE_SCALAR_ERROR_KERNEL)
+    {
+      for (int i = 0; i < count; i++)
+      {
+        if (genomes[i] != null) errors[i] += sumSquaredErrorScalar(target, genomes[i], from, to);
+      }
+      return;
+    }
+    for (int blockStart = from; blockStart < to; blockStart += ERROR_BLOCK_SIZE)
+    {
+      int blockEnd = Math.min(blockStart + ERROR_BLOCK_SIZE, to);
+      for (int i = 0; i < count; i++)
+      {
+        if (genomes[i] != null) errors[i] += blockError(target, genomes[i], blockStart, blockEnd);
+      }
+    }
+  }
+
+  /**
+   * Inner loop of the blocked kernel. The block has to be at most ERROR_BLOCK_SIZE pixels
+   * so the int accumulator can't overflow.
+   */
+  private static int blockError(int[] target, int[] genome, int from, int to)
+  {
+    int error = 0;
+    for (int i = from; i < to; i++)
+    {
+      int targetColor = target[i];
+      int genomeColor = genome[i];
+      int redDiff = ((targetColor >> 16) & 0xFF) - ((genomeColor >> 16) & 0xFF);
+      int greenDiff = ((targetColor >> 8) & 0xFF) - ((genomeColor >> 8) & 0xFF);
+      int blueDiff = (targetColor & 0xFF) - (genomeColor & 0xFF);
+      error += redDiff * redDiff + greenDiff * greenDiff + blueDiff * blueDiff;
+    }
+    return error;
+  }
+
+  /**
+   * Plain per-pixel version of sumSquaredError, used when the blocked kernel is turned off.
+   */
+  private static long sumSquaredErrorScalar(int[] target, int[] genome, int from, int to)
+  {
+    long error = 0;
+    for (int i = from; i < to; i++)
+    {
+      int targetColor = target[i];
+      int genomeColor = genome[i];
+      int redDiff = ((targetColor >> 16) & 0xFF) - ((genomeColor >> 16) & 0xFF);
+      int greenDiff = ((targetColor >> 8) & 0xFF) - ((genomeColor >> 8) & 0xFF);
+      int blueDiff = (targetColor & 0xFF) - (genomeColor & 0xFF);
+      error += redDiff * redDiff + greenDiff * greenDiff + blueDiff * blueDiff;
+    }
+    return error;
   }
 
   /**
@@ -0,0 +1,217 @@
+package cs351.project2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the fitness of recently evaluated genomes by the content hash of their
+ * triangle data (see Genome.getContentHash()), so that a genome that is identical to one
+ * evaluated before - such as a crossover offspring that matches a parent - doesn't have to
+ * be rendered again.
+ *
+ * Entries are split across NUM_SEGMENTS segments by hash, each with its own lock and its
+ * own least recently used order, so threads evaluating different genomes almost never wait
+ * on each other. Each segment holds an equal share of the capacity, so which entries are
+ * forgotten first is only approximately least recently used across the whole memo.
+ *
+ * Two different genomes hashing to the same 64-bit value would share a fitness, but with
+ * the number of genomes a run evaluates this is vanishingly unlikely.
+ *
+ * This is thread safe.
+ *
+ * @author Justin
+ */
+final class FitnessMemo
+{
+  private static final int NUM_SEGMENTS = 64; // has to be a power of 2
+  private final Segment[] SEGMENTS = new Segment[NUM_SEGMENTS];
+  // Bumped by clear() before any segment is cleared so results from before it can't be stored
+  private final AtomicInteger EPOCH = new AtomicInteger(0);
+  private final LongAdder HITS = new LongAdder();
+  private final LongAdder MISSES = new LongAdder();
+  // Volatile so a memo that is turned off can be skipped without taking any lock
+  private volatile int capacity;
+
+  /**
+   * One share of the memo, in least recently used order.
+   *
+   * @author Justin
+   */
+  private static final class Segment
+  {
+    private final ReentrantLock LOCK = new ReentrantLock();
+    private final LinkedHashMap<Long, Double> ENTRIES;
+    private int capacity;
+
+    private Segment(int capacity)
+    {
+      this.capacity = capacity;
+      ENTRIES = new LinkedHashMap<Long, Double>(16, 0.75f, true)
+      {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest)
+        {
+          return size() > Segment.this.capacity;
+        }
+      };
+    }
+
+    /**
+     * Sets the capacity and drops the least recently used entries that no longer fit.
+     * Only call while holding LOCK.
+     */
+    private void setCapacity(int capacity)
+    {
+      this.capacity = capacity;
+      while (ENTRIES.size() > capacity) ENTRIES.remove(ENTRIES.keySet().iterator().next());
+    }
+  }
+
+  /**
+   * Creates a new memo.
+   * @param capacity maximum number of fitness values to remember (0 to remember none)
+   */
+  FitnessMemo(int capacity)
+  {
+    this.capacity = Math.max(capacity, 0);
+    for (int i = 0; i < NUM_SEGMENTS; i++) SEGMENTS[i] = new Segment(getSegmentCapacity(this.capacity));
+  }
+
+  /**
+   * Sets the maximum number of fitness values to remember, dropping the least recently
+   * used ones if there are too many.
+   * @param capacity maximum number of entries (0 to remember none)
+   */
+  void setCapacity(int capacity)
+  {
+    this.capacity = Math.max(capacity, 0);
+    int segmentCapacity = getSegmentCapacity(this.capacity);
+    for (Segment segment : SEGMENTS)
+    {
+      try
+      {
+        segment.LOCK.lock();
+        segment.setCapacity(segmentCapacity);
+      }
+      finally
+      {
+        segment.LOCK.unlock();
+      }
+    }
+  }
+
+  /**
+   * Gets the current epoch. Pass it to put so that a value worked out before a call to
+   * clear() is not stored after it.
+   * @return current epoch
+   */
+  int getEpoch()
+  {
+    return EPOCH.get();
+  }
+
+  /**
+   * Looks up a fitness and counts the lookup as a hit or a miss.
+   * @param contentHash content hash of the genome
+   * @return remembered fitness or null if there is none
+   */
+  Double get(long contentHash)
+  {
+    if (capacity == 0) return null;
+    Segment segment = getSegment(contentHash);
+    Double fitness;
+    try
+    {
+      segment.LOCK.lock();
+      fitness = segment.ENTRIES.get(contentHash);
+    }
+    finally
+    {
+      segment.LOCK.unlock();
+    }
+    if (fitness == null) MISSES.increment();
+    else HITS.increment();
+    return fitness;
+  }
+
+  /**
+   * Remembers a fitness unless clear() was called since the given epoch.
+   * @param contentHash content hash of the genome
+   * @param fitness genome's exact fitness
+   * @param epoch value of getEpoch() from before the fitness was worked out
+   */
+  void put(long contentHash, double fitness, int epoch)
+  {
+    if (capacity == 0) return;
+    Segment segment = getSegment(contentHash);
+    try
+    {
+      segment.LOCK.lock();
+      // Checked under the segment's lock - clear() bumps the epoch before it clears this segment
+      if (EPOCH.get() == epoch) segment.ENTRIES.put(contentHash, fitness);
+    }
+    finally
+    {
+      segment.LOCK.unlock();
+    }
+  }
+
+  /**
+   * Forgets every fitness, for when the way genomes are evaluated changes. Hit and miss
+   * counts are kept.
+   */
+  void clear()
+  {
+    EPOCH.incrementAndGet();
+    for (Segment segment : SEGMENTS)
+    {
+      try
+      {
+        segment.LOCK.lock();
+        segment.ENTRIES.clear();
+      }
+      finally
+      {
+        segment.LOCK.unlock();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of lookups that found a fitness.
+   * @return hit count
+   */
+  long getHits()
+  {
+    return HITS.sum();
+  }
+
+  /**
+   * Gets the number of lookups that did not find a fitness.
+   * @return miss count
+   */
+  long getMisses()
+  {
+    return MISSES.sum();
+  }
+
+  /**
+   * Picks a segment from the high bits of the hash mixed with the low bits.
+   */
+  private Segment getSegment(long contentHash)
+  {
+    return SEGMENTS[(int)(contentHash ^ (contentHash >>> 32)) & (NUM_SEGMENTS - 1)];
+  }
+
+  /**
+   * Gets each segment's share of the given capacity, rounded up so that a small memo
+   * still remembers something.
+   */
+  private static int getSegmentCapacity(int capacity)
+  {
+    return (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS;
+  }
+}
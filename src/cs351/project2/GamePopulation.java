@@ -100,7 +100,38 @@ public class GamePopulation implements Population
     tribesCollection = new ArrayList<>();
     numGenerator = new Random();
     numGenomes = numGenerator.nextInt(2000) + 2000;
-    function = new FitnessCalculator();
+    // Run with -Dcs351.fitness=ssim to score genomes by structural similarity instead of squared error
+    if ("ssim".equalsIgnoreCase(System.getProperty("cs351.fitness"))) function = new SSIMFitnessCalculator();
+    else
+    {
+      FitnessCalculator calculator = new FitnessCalculator();
+      // Start out evaluating at 1/4 resolution (1/16 the pixels) and refine from there - run
+      // with -Dcs351.pyramidLevels=N to use N levels instead (1 always evaluates at full resolution)
+      calculator.setPyramidLevels(Integer.getInteger("cs351.pyramidLevels", 3));
+      // The job system has one worker per tribe, so with fewer tribes than cores each genome is
+      // split into bands that run on the cores left over - run with -Dcs351.bandParallelism=N
+      // to use N bands instead (1 turns it off)
+      int cores = Runtime.getRuntime().availableProcessors();
+      int spareCores = cores - numTribes;
+      int bands = numTribes < cores ? Math.max(1, Math.min(spareCores + 1, cores / Math.max(numTribes, 1))) : 1;
+      calculator.setBandParallelism(Integer.getInteger("cs351.bandParallelism", bands), Math.max(spareCores, 1));
+      // Off unless asked for - a hill climber's candidate differs from its parent by one gene,
+      // which is almost always well inside the sampled estimate's error, so screening them
+      // costs more than it rejects. Run with -Dcs351.screeningStride=8 to sample every 8th
+      // row of bounded evaluations first, and -Dcs351.screeningErrors=E to change how many
+      // standard errors short of the bound a genome has to be to be rejected
+      calculator.setScreening(Integer.getInteger("cs351.screeningStride", 0),
+                              Double.parseDouble(System.getProperty("cs351.screeningErrors", "3")));
+      // Genomes are scored without antialiasing, which costs 2-3x less than the antialiased
+      // tiers (see RenderBenchmark) - run with -Dcs351.renderQuality=SUPERSAMPLE_2X2 (or
+      // SUPERSAMPLE_4X4 or EXACT) to score with one. Screening always samples with the cheapest
+      // tier, and the window always draws the best genome with EXACT
+      String quality = System.getProperty("cs351.renderQuality", "NONE");
+      calculator.setRenderQuality(TriangleRenderer.RenderQuality.valueOf(quality));
+      calculator.setScreeningQuality(TriangleRenderer.RenderQuality.NONE);
+      if (engine.getStatistics() != null) calculator.addStatistics(engine.getStatistics());
+      function = calculator;
+    }
 
     if (engine.getGUI() != null) function.setTargetImage(engine.getGUI().getTargetImage());
 
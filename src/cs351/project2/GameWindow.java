@@ -12,6 +12,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import cs351.utility.Vector2f;
 import cs351.utility.Vector4f;
@@ -24,6 +25,7 @@ import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.control.*;
@@ -60,7 +62,7 @@ public class GameWindow implements GUI
   protected EvolutionEngine engine;
   protected boolean mustChangeTribes = false;
   protected int oldTribeSize;
-  protected int tribeSize = 1; // <---- CHANGE HERE
+  protected volatile int tribeSize = 1; // <---- CHANGE HERE
 
   private int updateCount = 0;
   private int run = 1; // for graph building re-write issues
@@ -83,8 +85,23 @@ public class GameWindow implements GUI
   private double canvasStartX = sceneWidth / 2 - canvasWidth - canvasMargin / 2;
   private double canvasStartY = 10;
 
-  private double[] xVals = new double [3];
-  private double[] yVals = new double [3];
+  // Draws the selected genome off of the JavaFX thread
+  private final GenomeDisplayRenderer DISPLAY_RENDERER = new GenomeDisplayRenderer(TriangleRenderer.RenderQuality.EXACT);
+  private Image displayedGenomeImage = null; // newest finished render, shown until the next one is done
+  // What was last handed to DISPLAY_RENDERER
+  private Genome displayedGenome = null;
+  private int displayedTriangleCount = -1;
+  // Only used by publishFrame on the engine's thread, to tell when the selected genome has to be copied
+  // again (versions of -1 are never current)
+  private Tribe publishedTribe = null;
+  private long publishedTribeVersion = -1;
+  private int publishedGenomeIndex = -1;
+  private Genome publishedGenome = null;
+  private long publishedGenomeVersion = -1;
+  private Genome publishedCopy = null;
+  private volatile Frame latestFrame = null; // newest frame from publishFrame, drawn by update
+  // Genome loaded from a file, waiting for publishFrame to add it to the selected tribe
+  private final AtomicReference<Genome> LOADED_GENOME = new AtomicReference<>();
 
   private Color backgroundColor = Color.BLACK;
 
@@ -95,15 +112,15 @@ public class GameWindow implements GUI
   private GraphicsContext gcGenetic;  // Draws the triangles
 
   private boolean canvasDebugging = false;
-  private boolean selectedNewImage = false;
+  private volatile boolean selectedNewImage = false;
 
   private Slider triangleListSlider; // Slider for triangle selection
   private Slider genomeListSlider; // Slider for genome selection
   private Slider tribeListSlider;  // Slider for tribe selection
 
   private int selectedTriangle;
-  private int selectedGenome;
-  private int selectedTribe;
+  private volatile int selectedGenome; // read by publishFrame on the engine's thread
+  private volatile int selectedTribe;
 
   private HBox canvasSubMenus;        // holds dialog and slider containers
   private HBox canvasDialogContainer; // container underneath canvas level
@@ -137,18 +154,18 @@ public class GameWindow implements GUI
   private Button saveGenome;              // saves the current genome to a file
   private Button loadGenome;              // writes the uploaded genome to the game
   private FileChooser fileChooser;
-  private boolean genomePaused = false;
+  // Flags read by the engine's thread are volatile so it sees changes from the JavaFX thread
+  private volatile boolean genomePaused = false;
   private boolean nextGen = false;
-  private boolean tribeCountChanged = false;
+  private volatile boolean tribeCountChanged = false;
   private boolean hasSecondElapsed = false; // used for statistics dependent on time
-  private Boolean userWantsToClose = false;
+  private volatile boolean userWantsToClose = false;
   private ChoiceBox pictureSelect;
   private TextField tribeField;
   private double amtButtons = 5; // how many buttons per row
   private double buttonSize = (canvasWidth*2 + canvasMargin) / amtButtons - 20;
 
-  private Genome currentGenome = new Genome();
-  private int triangleCounter;
+  private Genome currentGenome = new Genome(); // copy of the selected genome from the latest frame
   private NumberFormat formatter = new DecimalFormat("#0.0000");
   private NumberFormat formatterFit = new DecimalFormat("#0.00000000");
   private NumberFormat formatterTime = new DecimalFormat("#00");
@@ -157,7 +174,8 @@ public class GameWindow implements GUI
   private Stage stage;
 
   // Image and Image View Stuff
-  private Image targetImage = null;
+  // Images are loaded in full before they are set here, so the engine's thread can read their pixels
+  private volatile Image targetImage = null;
   private double targetImageWidthCropped = 0;
   private double targetImageHeightCropped = 0;
   private ColorSelector colorSelector;
@@ -165,6 +183,7 @@ public class GameWindow implements GUI
   // TableView and Stuff
   private Button tableButton;               // shows table of the selected genome
   private TableView <Genes> tableView;
+  private GeneTablePopup geneTablePopup = null; // open gene table, kept current by update
 
   // Create array of default pictures
   final private String[] pictureUrls = new String[]{"images/mona-lisa-cropted-100x81.png", "images/mona-lisa-cropted-250x202.png",
@@ -174,29 +193,65 @@ public class GameWindow implements GUI
     "images/Piet_Mondrian-512x385.png", "images/petronas_towers-100x69.png", "images/petronas_towers-250x172.png", "images/petronas_towers-512x352.png"  };
 
 
+  /**
+   * Everything update shows about the engine, copied by publishFrame at one of the engine's safe points so that
+   * the JavaFX thread never reads the population while the engine is changing it. Frames are never changed once
+   * they are published.
+   */
+  private static final class Frame
+  {
+    private final Genome GENOME; // copy of the selected genome
+    private final double FITNESS; // selected genome's fitness
+    private final int TRIBE_SIZE; // genomes in the selected tribe
+    private final int POPULATION_COUNT;
+    private final int GENERATION_COUNT;
+    private final int GENERATIONS_LAST_SECOND;
+    private final int MUTATION_COUNT;
+    private final int CROSS_COUNT;
+    private final double FITNESS_PER_SECOND;
+    private final double GENERATIONS_PER_SECOND;
+    private final int HOURS, MINUTES, SECONDS;
+
+    private Frame(Engine engine, Genome genome, double fitness, int tribeSize)
+    {
+      GENOME = genome;
+      FITNESS = fitness;
+      TRIBE_SIZE = tribeSize;
+      POPULATION_COUNT = engine.getPopulationCount();
+      GENERATION_COUNT = engine.getGenerationCount();
+      GENERATIONS_LAST_SECOND = engine.getGenerationsLastSecond();
+      MUTATION_COUNT = engine.getMutationCount();
+      CROSS_COUNT = engine.getCrossCount();
+      FITNESS_PER_SECOND = engine.getFitnessPerSecond();
+      GENERATIONS_PER_SECOND = engine.getAverageGenerationsPerSecondSinceLastInit();
+      HOURS = engine.getHours();
+      MINUTES = engine.getMinutes();
+      SECONDS = engine.getSeconds();
+    }
+  }
+
   /**
    * GeneTablePopup is used to show the genes of the selected Genome. It opens a second window, which contains
-   * and displays the genes.
+   * and displays the genes. The table is filled in and kept current by update from the copy of the genome in
+   * the latest frame.
    */
   class GeneTablePopup extends Stage
   {
     VBox vBox = new VBox(10);
-    private final ObservableList<Genes> data = FXCollections.observableArrayList(); // Holds genome values
+    private final GeneTableRows data = new GeneTableRows(); // Holds genome values
+    private Genome shownGenome = null;
+    private long shownGenomeVersion = -1;
 
     /**
-     * Fills data array with information from the selected genome
+     * Updates the table to match the given genome if it or its genes have changed since the last call.
+     * @param genome genome to show (has to be safe to read)
      */
-    private void populateData()
+    private void refresh(Genome genome)
     {
-      Collection<float[]> triangles = new ArrayList<>();
-      triangles = currentGenome.getTriangles();
-
-      // Loop through triangle list
-      for(float[] triangle: triangles)
-      {
-        data.add(new Genes(triangle[0], triangle[1], triangle[2], triangle[3], triangle[4], triangle[5], triangle[6],
-          triangle[7], triangle[8], triangle[9]));
-      }
+      if (genome == shownGenome && genome.getVersion() == shownGenomeVersion) return;
+      shownGenome = genome;
+      shownGenomeVersion = genome.getVersion();
+      data.refresh(genome);
     }
 
     /**
@@ -234,9 +289,6 @@ public class GameWindow implements GUI
       blue.setCellValueFactory(new PropertyValueFactory<Genes, Float>("geneValueBlue"));
       alpha.setCellValueFactory(new PropertyValueFactory<Genes, Float>("geneValueAlpha"));
 
-      // Populate data with information from genome
-      populateData();
-
       // Add values to their containers
       tableView.getColumns().addAll(x1, y1, x2, y2, x3, y3, red, green, blue, alpha);
       tableView.setItems(data);
@@ -248,6 +300,90 @@ public class GameWindow implements GUI
     }
   }
 
+  /**
+   * Rows of the gene table. Only a copy of the genes is kept - the Genes object for a row is made when the table
+   * asks for it, and TableView only asks for the rows it is showing. refresh compares the copy against the genome
+   * and only tells the table about the triangles that changed, so the rows that didn't change aren't redrawn.
+   */
+  private static final class GeneTableRows extends ObservableListBase<Genes>
+  {
+    private static final int GENES_PER_TRIANGLE = 10;
+    private float[] genes = new float[0];
+    private Genes[] rows = new Genes[0]; // null until the table asks for the row
+    private int size = 0;
+
+    /**
+     * Copies the genome's genes and reports the triangles that changed since the last call.
+     * @param genome genome to show
+     */
+    void refresh(Genome genome)
+    {
+      beginChange();
+      if (genome.size() != size)
+      {
+        // Different number of triangles - most likely a different genome, so replace every row.
+        // Listeners are handed the old rows, so make any the table never asked for first
+        ArrayList<Genes> removed = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) removed.add(get(i));
+        nextRemove(0, removed);
+        size = genome.size();
+        genes = new float[size * GENES_PER_TRIANGLE];
+        rows = new Genes[size];
+        int index = 0;
+        for (float[] triangle : genome.getTriangles())
+        {
+          System.arraycopy(triangle, 0, genes, index * GENES_PER_TRIANGLE, GENES_PER_TRIANGLE);
+          index++;
+        }
+        nextAdd(0, size);
+      }
+      else
+      {
+        int index = 0;
+        for (float[] triangle : genome.getTriangles())
+        {
+          int offset = index * GENES_PER_TRIANGLE;
+          if (!matches(triangle, offset))
+          {
+            nextSet(index, get(index)); // made from the old genes before they are overwritten
+            System.arraycopy(triangle, 0, genes, offset, GENES_PER_TRIANGLE);
+            rows[index] = null;
+          }
+          index++;
+        }
+      }
+      endChange();
+    }
+
+    @Override
+    public Genes get(int index)
+    {
+      if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index + " is not valid");
+      if (rows[index] == null)
+      {
+        int offset = index * GENES_PER_TRIANGLE;
+        rows[index] = new Genes(genes[offset], genes[offset + 1], genes[offset + 2], genes[offset + 3],
+          genes[offset + 4], genes[offset + 5], genes[offset + 6], genes[offset + 7], genes[offset + 8], genes[offset + 9]);
+      }
+      return rows[index];
+    }
+
+    @Override
+    public int size()
+    {
+      return size;
+    }
+
+    private boolean matches(float[] triangle, int offset)
+    {
+      for (int i = 0; i < GENES_PER_TRIANGLE; i++)
+      {
+        if (Float.compare(triangle[i], genes[offset + i]) != 0) return false;
+      }
+      return true;
+    }
+  }
+
   /**
    * Genes is an internal class that is used and regulated by the "Show Genome Table" button. This allows properties to
    * be shown in the table as well as having the capability of being changed
@@ -618,26 +754,18 @@ public class GameWindow implements GUI
   /**
    * Updates statistics values at each update
    */
-  private void updateStatistics(EvolutionEngine engine)
+  private void updateStatistics(Frame frame)
   {
-    fitnessLabel.setText("Selected Genome Fitness: " + formatter.format(currentGenome.getFitness()));
-    if(hasSecondElapsed)fitnessPerSecondLabel.setText("Fitness/Sec: " + formatterFit.format(((Engine) engine).getFitnessPerSecond()));
-    populationLabel.setText("Population (Genomes): " + getPopulationCount());
-    generationLabel.setText("Amount of Generations: " + engine.getGenerationCount());
-    if(hasSecondElapsed)generationPerSecondLabel.setText("Generations/Sec: " + tinyFormat.format(((Engine)engine).getAverageGenerationsPerSecondSinceLastInit()));
-    generationAvgLabel.setText("Generations on Average: " + tinyFormat.format(((Engine)engine).getGenerationsLastSecond()));
-    hillChildrenLabel.setText("Children from Hill Climbing: " + ((Engine)engine).getMutationCount());
-    crossChildrenLabel.setText("Children from Crossover: " + ((Engine)engine).getCrossCount());
-    nonPausedTime.setText("Running: " + formatterTime.format(engine.getHours()) + ":" +
-      formatterTime.format(engine.getMinutes()) + ":" + formatterTime.format(engine.getSeconds()));
-  }
-
-  /**
-   * @return number of genomes in the entire population
-   */
-  private int getPopulationCount()
-  {
-    return engine.getPopulationCount();
+    fitnessLabel.setText("Selected Genome Fitness: " + formatter.format(frame.FITNESS));
+    if(hasSecondElapsed)fitnessPerSecondLabel.setText("Fitness/Sec: " + formatterFit.format(frame.FITNESS_PER_SECOND));
+    populationLabel.setText("Population (Genomes): " + frame.POPULATION_COUNT);
+    generationLabel.setText("Amount of Generations: " + frame.GENERATION_COUNT);
+    if(hasSecondElapsed)generationPerSecondLabel.setText("Generations/Sec: " + tinyFormat.format(frame.GENERATIONS_PER_SECOND));
+    generationAvgLabel.setText("Generations on Average: " + tinyFormat.format(frame.GENERATIONS_LAST_SECOND));
+    hillChildrenLabel.setText("Children from Hill Climbing: " + frame.MUTATION_COUNT);
+    crossChildrenLabel.setText("Children from Crossover: " + frame.CROSS_COUNT);
+    nonPausedTime.setText("Running: " + formatterTime.format(frame.HOURS) + ":" +
+      formatterTime.format(frame.MINUTES) + ":" + formatterTime.format(frame.SECONDS));
   }
 
 
@@ -678,13 +806,12 @@ public class GameWindow implements GUI
       userGenome.setFitness(1);
       //engine.getPopulation().getFitnessFunction().generateFitness(engine, userGenome);
 
-      ArrayList<Tribe> tribes = new ArrayList<>();
-      tribes.addAll(engine.getPopulation().getTribes());
-      tribes.get(selectedTribe).add(userGenome);
+      // The tribe can only be changed at one of the engine's safe points, so publishFrame adds it
+      LOADED_GENOME.set(userGenome);
       setSelectedGenome(0);
 
       scanner.close();
-      System.out.println("-- Genome added to tribe");
+      System.out.println("-- Genome handed to the engine");
 
     }catch (IOException e)
     {
@@ -1191,7 +1318,14 @@ public class GameWindow implements GUI
       tableButton.setMinWidth(buttonSize);
       tableButton.setOnAction(e ->
       {
-        new GeneTablePopup();
+        // Only one table is kept current - replace any that is already open
+        if (geneTablePopup != null) geneTablePopup.close();
+        GeneTablePopup popup = new GeneTablePopup();
+        popup.setOnHidden(event ->
+        {
+          if (geneTablePopup == popup) geneTablePopup = null;
+        });
+        geneTablePopup = popup;
       });
 
       // Create file chooser button
@@ -1411,13 +1545,13 @@ public class GameWindow implements GUI
   }
 
   /**
-   * Decides which genomes should be highlighted and renders them. Performs any
-   * update work to keep the GUI current.
+   * Copies what update shows out of the engine into a new frame. Has to be called at one of
+   * the engine's safe points (see ConcurrentGUIWrapper), since it reads the population, and
+   * is also where a genome loaded from a file gets added to the selected tribe.
    *
    * @param engine reference to an evolution engine for callbacks
    */
-  @Override
-  public void update(EvolutionEngine engine)
+  public void publishFrame(EvolutionEngine engine)
   {
     // If we are only running the TG project. We should save our data every
     if(graphBuilding)
@@ -1429,16 +1563,57 @@ public class GameWindow implements GUI
         return;
       }
       graphSaveData();
-      disableButtons();
       return;
     }
 
-    int selectedTribe = getSelectedTribe();
-    int rColor, gColor, bColor = 0;
-    double alpha = 0;
-    int vertexCounter = 0;
+    Tribe tribe = getElement(engine.getPopulation().getTribes(), getSelectedTribe());
+    Genome loaded = LOADED_GENOME.getAndSet(null);
+    if (loaded != null)
+    {
+      tribe.add(loaded);
+      System.out.println("-- Genome added to tribe");
+    }
+
+    // Only look the selected genome up again if its tribe was changed or reordered or another
+    // genome was selected, and only copy it again if it changed
+    int genomeIndex = Math.min(getSelectedGenome(), tribe.size()-1);
+    if (tribe != publishedTribe || tribe.getVersion() != publishedTribeVersion || genomeIndex != publishedGenomeIndex)
+    {
+      publishedTribe = tribe;
+      publishedTribeVersion = tribe.getVersion();
+      publishedGenomeIndex = genomeIndex;
+      publishedGenome = tribe.get(genomeIndex);
+      publishedGenomeVersion = -1; // make sure the new genome gets copied
+    }
+    if (publishedGenome.getVersion() != publishedGenomeVersion)
+    {
+      publishedGenomeVersion = publishedGenome.getVersion();
+      publishedCopy = new Genome();
+      for (float[] triangle : publishedGenome.getTriangles()) publishedCopy.add(triangle.clone());
+      publishedCopy.setFitness(publishedGenome.getFitness());
+    }
+    latestFrame = new Frame((Engine)engine, publishedCopy, publishedGenome.getFitness(), tribe.size());
+  }
+
+  /**
+   * Draws the latest frame from publishFrame and performs any update work to keep
+   * the GUI current. Has to be called from the JavaFX thread, and only reads the
+   * frame, so it never has to wait for the engine.
+   *
+   * @param engine reference to an evolution engine for callbacks
+   */
+  @Override
+  public void update(EvolutionEngine engine)
+  {
+    if(graphBuilding)
+    {
+      disableButtons();
+      return;
+    }
+    Frame frame = latestFrame;
+    if (frame == null) return;
 
-    if(engine.getSeconds() >= 1) hasSecondElapsed = true;
+    if(frame.SECONDS >= 1) hasSecondElapsed = true;
 
     if(nextGen == true && genomePaused == false)
     {
@@ -1463,59 +1638,46 @@ public class GameWindow implements GUI
       selectedNewImage = false;
     }
 
-    // Fill black background
-    //gcGenetic.setFill(getBackgroundColor());
-    gcGenetic.setFill(Color.BLACK);
-    gcGenetic.fillRect(0, 0, getTargetImageWidth(), getTargetImageHeight());
+    currentGenome = frame.GENOME;
+    if (genomeListSlider.getMax() != frame.TRIBE_SIZE-1) genomeListSlider.setMax(frame.TRIBE_SIZE-1);
 
-    // For time being, select very first genome
-    ArrayList<Tribe> tribes = new ArrayList<>();
-    tribes.addAll(engine.getPopulation().getTribes());
+    // The triangles are drawn on a background thread - only hand the genome over if it changed,
+    // and only swap in a render once it's done
+    int numTriangles = getSelectedTriangle() + 1;
+    if (currentGenome != displayedGenome || numTriangles != displayedTriangleCount)
+    {
+      displayedGenome = currentGenome;
+      displayedTriangleCount = numTriangles;
+      DISPLAY_RENDERER.submit(currentGenome, numTriangles, getImageWidth(), getImageHeight());
+    }
+    Image render = DISPLAY_RENDERER.getLatestImage();
+    if (render != null) displayedGenomeImage = render;
+    if (displayedGenomeImage != null) gcGenetic.drawImage(displayedGenomeImage, 0, 0);
+    else
+    {
+      // Fill black background until the first render is done
+      gcGenetic.setFill(Color.BLACK);
+      gcGenetic.fillRect(0, 0, getTargetImageWidth(), getTargetImageHeight());
+    }
 
-    ArrayList<Genome> genomes = new ArrayList<>();
-    genomes.addAll(tribes.get(selectedTribe).getGenomes());
-    Genome selectedGenome = genomes.get(getSelectedGenome());
-    selectedGenome.setFitness(engine.getPopulation().getFitnessFunction().generateFitness(engine, selectedGenome));
-    currentGenome = selectedGenome;
-    genomeListSlider.setMax(genomes.size()-1);
+    if (geneTablePopup != null) geneTablePopup.refresh(currentGenome);
 
-    // Loop through each triangle of genome
-    TriangleManager manager = new TriangleManager(); // need this to interpret the triangle data
-    //TriangleRenderer renderer = new TriangleRenderer(getImageWidth(), getImageHeight());
+    updateStatistics(frame);
+  }
 
-    triangleCounter = 0;
-    for(float[] currentTriangle: selectedGenome.getTriangles())
+  /**
+   * Gets the element at the given position of a collection (the last one if the index is
+   * past the end) without copying it into a list.
+   */
+  private <T> T getElement(Collection<T> collection, int index)
+  {
+    T element = null;
+    for (T current : collection)
     {
-      vertexCounter = 0;
-
-      // Set the manager's triangle data
-      manager.setTriangleData(this, currentTriangle);
-
-      // Get Color Values
-      float[] color = manager.getColor();
-      rColor = (int)color[0];
-      gColor = (int)color[1];
-      bColor = (int)color[2];
-      alpha = color[3];
-      //renderer.renderTriangle(manager.getXCoordinates(), manager.getYCoordinates(), manager.getColor());
-      gcGenetic.setFill(Color.rgb(rColor, gColor, bColor, alpha));
-
-      float[] xVertices = manager.getXCoordinates();
-      float[] yVertices = manager.getYCoordinates();
-      for(int i = 0; i < xVertices.length; i++)
-      {
-        xVals[i] = xVertices[i];
-        yVals[i] = yVertices[i];
-      }
-      gcGenetic.fillPolygon(xVals, yVals, 3);
-
-      // Draw only specified amount of triangles
-      triangleCounter ++;
-      if(triangleCounter > getSelectedTriangle()) break;
+      element = current;
+      if (index-- == 0) break;
     }
-    //gcGenetic.drawImage(renderer.convertToImage(), 0, 0);
-
-    updateStatistics(engine);
+    return element;
   }
 
   private void windowClosed(WindowEvent event)
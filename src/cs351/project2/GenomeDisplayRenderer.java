@@ -0,0 +1,176 @@
+package cs351.project2;
+
+import cs351.core.Genome;
+import cs351.core.TriangleManager;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Draws the genome the GUI is showing on a background thread so that the JavaFX thread never
+ * has to. The GUI hands over a copy of the genome's triangles with submit, a worker thread
+ * draws it with a TriangleRenderer, and the finished pixels wait in a frame until the GUI
+ * picks them up with getLatestImage, which only has to copy them into a WritableImage in one
+ * bulk setPixels call.
+ *
+ * Only the newest genome matters: submitting again before the worker has started on the last
+ * one replaces it, and a finished frame that the GUI never picked up is reused for the next
+ * one. Frames are passed back and forth through atomic references, so the worker and the
+ * JavaFX thread never touch the same pixels at once.
+ *
+ * @author Justin
+ */
+final class GenomeDisplayRenderer
+{
+  private static final int GENES_PER_TRIANGLE = 10;
+  // A single daemon thread, so drawing never holds up the application closing
+  private final ExecutorService WORKER = Executors.newSingleThreadExecutor(runnable ->
+  {
+    Thread thread = new Thread(runnable, "Genome Display Renderer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicReference<Snapshot> PENDING = new AtomicReference<>(); // not yet started
+  private final AtomicReference<Frame> READY = new AtomicReference<>(); // drawn, not yet shown
+  private final AtomicReference<Frame> FREE = new AtomicReference<>(); // shown, can be drawn into again
+  private final TriangleRenderer.RenderQuality QUALITY;
+  // Only touched by the worker thread
+  private TriangleRenderer renderer;
+  private final TriangleManager MANAGER = new TriangleManager();
+  private final float[] TRIANGLE = new float[GENES_PER_TRIANGLE];
+  private final float[] X_COORDINATES = new float[3];
+  private final float[] Y_COORDINATES = new float[3];
+  private final float[] COLOR = new float[4];
+  // Only touched by the JavaFX thread
+  private WritableImage image;
+
+  /**
+   * Copy of the triangles to draw, so that the worker never reads a genome that the engine
+   * could be changing.
+   *
+   * @author Justin
+   */
+  private static final class Snapshot
+  {
+    private final float[] GENES; // GENES_PER_TRIANGLE per triangle, in drawing order
+    private final int NUM_TRIANGLES;
+    private final int WIDTH, HEIGHT;
+
+    private Snapshot(float[] genes, int numTriangles, int width, int height)
+    {
+      GENES = genes;
+      NUM_TRIANGLES = numTriangles;
+      WIDTH = width;
+      HEIGHT = height;
+    }
+  }
+
+  /**
+   * Finished render, packed ARGB and row-major.
+   *
+   * @author Justin
+   */
+  private static final class Frame
+  {
+    private final int[] PIXELS;
+    private final int WIDTH, HEIGHT;
+
+    private Frame(int width, int height)
+    {
+      PIXELS = new int[width * height];
+      WIDTH = width;
+      HEIGHT = height;
+    }
+  }
+
+  /**
+   * Creates a new display renderer.
+   * @param quality how triangle edges are antialiased (see TriangleRenderer.RenderQuality)
+   */
+  GenomeDisplayRenderer(TriangleRenderer.RenderQuality quality)
+  {
+    QUALITY = quality;
+  }
+
+  /**
+   * Copies the first numTriangles triangles of the genome and queues them to be drawn. This
+   * has to be called while nothing is changing the genome, but returns without drawing.
+   * @param genome genome to show
+   * @param numTriangles maximum number of triangles to draw
+   * @param width width of the image to draw (in pixels)
+   * @param height height of the image to draw (in pixels)
+   */
+  void submit(Genome genome, int numTriangles, int width, int height)
+  {
+    numTriangles = Math.min(numTriangles, genome.size());
+    float[] genes = new float[numTriangles * GENES_PER_TRIANGLE];
+    int index = 0;
+    for (float[] triangle : genome.getTriangles())
+    {
+      if (index == numTriangles) break;
+      System.arraycopy(triangle, 0, genes, index * GENES_PER_TRIANGLE, GENES_PER_TRIANGLE);
+      index++;
+    }
+    // Only schedule a draw if one isn't already waiting - it will pick up this snapshot
+    if (PENDING.getAndSet(new Snapshot(genes, numTriangles, width, height)) == null) WORKER.execute(this::drawPending);
+  }
+
+  /**
+   * Gets the most recently finished render, or null if nothing has finished since the last
+   * call. Must be called from the JavaFX thread. The same WritableImage is returned every
+   * time (unless the size changes), so it can be drawn straight away.
+   * @return image holding the newest render, or null if there is nothing new
+   */
+  Image getLatestImage()
+  {
+    Frame frame = READY.getAndSet(null);
+    if (frame == null) return null;
+    if (image == null || (int)image.getWidth() != frame.WIDTH || (int)image.getHeight() != frame.HEIGHT)
+    {
+      image = new WritableImage(frame.WIDTH, frame.HEIGHT);
+    }
+    // Every pixel is opaque, so the premultiplied format (JavaFX's native one) is the same data
+    image.getPixelWriter().setPixels(0, 0, frame.WIDTH, frame.HEIGHT, PixelFormat.getIntArgbPreInstance(),
+                                     frame.PIXELS, 0, frame.WIDTH);
+    FREE.set(frame);
+    return image;
+  }
+
+  /**
+   * Draws whatever snapshot is pending (on the worker thread).
+   */
+  private void drawPending()
+  {
+    Snapshot snapshot = PENDING.getAndSet(null);
+    if (snapshot == null) return;
+    if (renderer == null || renderer.getWidth() != snapshot.WIDTH || renderer.getHeight() != snapshot.HEIGHT)
+    {
+      renderer = new TriangleRenderer(snapshot.WIDTH, snapshot.HEIGHT, TriangleRenderer.RenderMode.FIXED_POINT);
+      renderer.setQuality(QUALITY);
+    }
+
+    renderer.clear();
+    for (int i = 0; i < snapshot.NUM_TRIANGLES; i++)
+    {
+      System.arraycopy(snapshot.GENES, i * GENES_PER_TRIANGLE, TRIANGLE, 0, GENES_PER_TRIANGLE);
+      MANAGER.setTriangleData(TRIANGLE);
+      renderer.renderTriangle(MANAGER.getXCoordinates(X_COORDINATES), MANAGER.getYCoordinates(Y_COORDINATES),
+                              MANAGER.getColor(COLOR));
+    }
+    renderer.markComplete();
+
+    Frame frame = FREE.getAndSet(null);
+    if (frame == null || frame.WIDTH != snapshot.WIDTH || frame.HEIGHT != snapshot.HEIGHT)
+    {
+      frame = new Frame(snapshot.WIDTH, snapshot.HEIGHT);
+    }
+    System.arraycopy(renderer.getPixels(), 0, frame.PIXELS, 0, frame.PIXELS.length);
+    // If the last frame was never shown, this one replaces it and it gets drawn into next time
+    Frame skipped = READY.getAndSet(frame);
+    if (skipped != null) FREE.set(skipped);
+  }
+}
@@ -0,0 +1,439 @@
+package cs351.project2;
+
+import cs351.core.Genome;
+import cs351.core.TriangleManager;
+
+import java.util.Arrays;
+
+/**
+ * Holds on to the last render of a single genome along with the squared error of each
+ * FitnessCalculator.ERROR_TILE_SIZE square tile of that render. When a few of the genome's
+ * triangles change, only the rectangle covering their old and new positions is recomposited,
+ * the tiles overlapping it are marked dirty and rescored, and the total error is the sum of
+ * the tile errors.
+ *
+ * Since triangles are blended in order, changing triangle k has no effect on the composite
+ * of triangles [0, k). If a checkpoint interval N is given, a copy of the composite is also
+ * kept every N triangles and recompositing starts from the closest checkpoint at or below
+ * the first changed triangle instead of from a cleared image.
+ *
+ * A TriangleBinIndex with one bin per tile keeps track of which triangles touch which tiles,
+ * so recompositing only visits the triangles that overlap the changed rectangle.
+ *
+ * Scoring can be given an error bound, in which case it stops once the error is known to be
+ * over it. Tiles that were not rescored stay dirty and are picked up by the next update.
+ *
+ * Changes are found by comparing the genome against a copy of the genes that were
+ * used for the last render, so callers do not have to report what they changed.
+ *
+ * This is not thread safe - FitnessCalculator hands each cache to one thread at a time.
+ *
+ * @author Justin
+ */
+final class GenomeRenderCache
+{
+  private static final int GENES_PER_TRIANGLE = 10;
+  // Past this many changed triangles the whole genome is simply re-rendered
+  private static final int MAX_CHANGED_TRIANGLES = 16;
+  private static final int TILE_SIZE = FitnessCalculator.ERROR_TILE_SIZE;
+  /**
+   * Returned by update when the error went over the given bound.
+   */
+  static final long REJECTED_ERROR = -1;
+  private final TriangleRenderer RENDERER;
+  private final TriangleManager MANAGER = new TriangleManager();
+  private final float[] X_COORDINATES = new float[3];
+  private final float[] Y_COORDINATES = new float[3];
+  private final float[] COLOR = new float[4];
+  private final float[] TRIANGLE = new float[GENES_PER_TRIANGLE]; // scratch copy of one triangle's genes
+  private final int WIDTH, HEIGHT;
+  private final float SCALE_X, SCALE_Y; // genome coordinates -> pixels
+  private final int TILE_COLUMNS, TILE_ROWS;
+  private final long[] TILE_ERROR; // row-major, TILE_COLUMNS x TILE_ROWS
+  private final boolean[] TILE_DIRTY; // true if the tile's error is out of date
+  private final TriangleBinIndex INDEX; // which triangles touch which tiles
+  private final int CHECKPOINT_INTERVAL; // 0 if checkpoints are disabled
+  // checkpoints[i] holds the composite of the first (i + 1) * CHECKPOINT_INTERVAL triangles
+  private int[][] checkpoints = new int[0][];
+  private int genomeID = -1;
+  private int numTriangles = 0;
+  private float[] genes = new float[0]; // genes used for the last render
+  // Region that needs recompositing: [regionX0, regionX1) x [regionY0, regionY1)
+  private int regionX0, regionY0, regionX1, regionY1;
+  // Set by FitnessCalculator each time the cache is used - the lowest value is evicted first
+  private volatile long lastUsed = 0;
+
+  /**
+   * Creates a new cache for images of the given size.
+   * @param width width (in pixels)
+   * @param height height (in pixels)
+   * @param scaleX multiplier that takes genome x coordinates to pixels
+   * @param scaleY multiplier that takes genome y coordinates to pixels
+   * @param mode render mode to draw the genome with
+   * @param quality render quality to draw the genome with
+   * @param checkpointInterval number of triangles between checkpoints (0 for none)
+   */
+  GenomeRenderCache(int width, int height, float scaleX, float scaleY, TriangleRenderer.RenderMode mode,
+                    TriangleRenderer.RenderQuality quality, int checkpointInterval)
+  {
+    WIDTH = width;
+    HEIGHT = height;
+    SCALE_X = scaleX;
+    SCALE_Y = scaleY;
+    MANAGER.setCoordinateScale(scaleX, scaleY);
+    RENDERER = new TriangleRenderer(width, height, mode);
+    RENDERER.setQuality(quality);
+    TILE_COLUMNS = (width + TILE_SIZE - 1) / TILE_SIZE;
+    TILE_ROWS = (height + TILE_SIZE - 1) / TILE_SIZE;
+    TILE_ERROR = new long[TILE_COLUMNS * TILE_ROWS];
+    TILE_DIRTY = new boolean[TILE_ERROR.length];
+    INDEX = new TriangleBinIndex(width, height, TILE_SIZE);
+    CHECKPOINT_INTERVAL = Math.max(checkpointInterval, 0);
+  }
+
+  /**
+   * Checks to see if this cache can be used with the given settings.
+   * @param width width (in pixels)
+   * @param height height (in pixels)
+   * @param scaleX multiplier that takes genome x coordinates to pixels
+   * @param scaleY multiplier that takes genome y coordinates to pixels
+   * @param mode render mode
+   * @param quality render quality
+   * @param checkpointInterval number of triangles between checkpoints (0 for none)
+   * @return true if compatible and false if not
+   */
+  boolean isCompatible(int width, int height, float scaleX, float scaleY, TriangleRenderer.RenderMode mode,
+                       TriangleRenderer.RenderQuality quality, int checkpointInterval)
+  {
+    return WIDTH == width && HEIGHT == height && SCALE_X == scaleX && SCALE_Y == scaleY &&
+           RENDERER.getRenderMode() == mode && RENDERER.getQuality() == quality &&
+           CHECKPOINT_INTERVAL == Math.max(checkpointInterval, 0);
+  }
+
+  /**
+   * Gets the approximate number of bytes held by this cache.
+   * @return memory usage in bytes
+   */
+  long getMemoryUsage()
+  {
+    return estimateMemoryUsage(WIDTH, HEIGHT, numTriangles, CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * Gets the approximate number of bytes a cache with the given settings will hold once it
+   * has rendered a genome.
+   * @param width width (in pixels)
+   * @param height height (in pixels)
+   * @param numTriangles number of triangles in the genome
+   * @param checkpointInterval number of triangles between checkpoints (0 for none)
+   * @return memory usage in bytes
+   */
+  static long estimateMemoryUsage(int width, int height, int numTriangles, int checkpointInterval)
+  {
+    long frameBytes = 4L * width * height;
+    return frameBytes * (1 + numCheckpoints(numTriangles, checkpointInterval)) +
+           8L * ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE) +
+           4L * GENES_PER_TRIANGLE * numTriangles + TriangleBinIndex.estimateMemoryUsage(numTriangles);
+  }
+
+  private static int numCheckpoints(int numTriangles, int checkpointInterval)
+  {
+    return checkpointInterval <= 0 || numTriangles == 0 ? 0 : (numTriangles - 1) / checkpointInterval;
+  }
+
+  /**
+   * Gets the id of the genome this cache last rendered.
+   * @return genome id or -1 if none
+   */
+  int getGenomeID()
+  {
+    return genomeID;
+  }
+
+  /**
+   * Gets the value last given to setLastUsed.
+   * @return last use stamp
+   */
+  long getLastUsed()
+  {
+    return lastUsed;
+  }
+
+  /**
+   * Records when the cache was last used, as a value that only ever goes up.
+   * @param stamp use stamp
+   */
+  void setLastUsed(long stamp)
+  {
+    lastUsed = stamp;
+  }
+
+  /**
+   * Gets the squared error of each tile as of the last update. Tiles are stored row-major,
+   * so tile (column, row) is found at row * getTileColumns() + column. Tiles that were left
+   * dirty by an update that went over its error bound hold -1.
+   * @return tile errors (do not modify)
+   */
+  long[] getTileErrors()
+  {
+    return TILE_ERROR;
+  }
+
+  /**
+   * Gets the number of tiles across the image.
+   * @return tile columns
+   */
+  int getTileColumns()
+  {
+    return TILE_COLUMNS;
+  }
+
+  /**
+   * Finds the triangles (as of the last update) that can touch any pixel in
+   * [x0, x1) x [y0, y1), using the bin index instead of looking at every triangle.
+   * @return indices of the triangles in the genome, in increasing order
+   */
+  int[] getTrianglesOverlapping(int x0, int y0, int x1, int y1)
+  {
+    int count = INDEX.query(x0, y0, x1, y1, 0);
+    return Arrays.copyOf(INDEX.getResults(), count);
+  }
+
+  /**
+   * Brings the cached render up to date with the genome and returns the sum of the squared
+   * error between it and the target.
+   * @param genome genome to render
+   * @param target packed ARGB target pixels (row-major, same size as this cache)
+   * @return sum of squared channel differences for the whole image
+   */
+  long update(Genome genome, int[] target)
+  {
+    return update(genome, target, Long.MAX_VALUE);
+  }
+
+  /**
+   * Works the same as update(genome, target), but gives up on scoring once the error is
+   * known to be greater than maxError. The render itself is always brought up to date.
+   * @param genome genome to render
+   * @param target packed ARGB target pixels (row-major, same size as this cache)
+   * @param maxError largest error the caller is interested in
+   * @return sum of squared channel differences for the whole image, or REJECTED_ERROR
+   *         if it is greater than maxError
+   */
+  long update(Genome genome, int[] target, long maxError)
+  {
+    if (genome.getID() != genomeID || genome.size() != numTriangles)
+    {
+      rebuild(genome, target);
+      return scoreTiles(target, maxError);
+    }
+
+    regionX0 = WIDTH;
+    regionY0 = HEIGHT;
+    regionX1 = 0;
+    regionY1 = 0;
+    int numChanged = 0;
+    int firstChanged = -1;
+    int offset = 0;
+    for (float[] triangle : genome.getTriangles())
+    {
+      if (!matchesGenes(triangle, offset))
+      {
+        if (++numChanged > MAX_CHANGED_TRIANGLES)
+        {
+          rebuild(genome, target);
+          return scoreTiles(target, maxError);
+        }
+        if (firstChanged == -1) firstChanged = offset / GENES_PER_TRIANGLE;
+        expandRegion(genes, offset); // where it used to be
+        System.arraycopy(triangle, 0, genes, offset, GENES_PER_TRIANGLE);
+        expandRegion(genes, offset); // where it is now
+        indexTriangle(offset / GENES_PER_TRIANGLE);
+      }
+      offset += GENES_PER_TRIANGLE;
+    }
+
+    regionX0 = Math.max(regionX0, 0);
+    regionY0 = Math.max(regionY0, 0);
+    regionX1 = Math.min(regionX1, WIDTH);
+    regionY1 = Math.min(regionY1, HEIGHT);
+    if (regionX0 < regionX1 && regionY0 < regionY1) recomposite(genome, target, firstChanged);
+    return scoreTiles(target, maxError);
+  }
+
+  private void rebuild(Genome genome, int[] target)
+  {
+    genomeID = genome.getID();
+    numTriangles = genome.size();
+    if (genes.length != numTriangles * GENES_PER_TRIANGLE) genes = new float[numTriangles * GENES_PER_TRIANGLE];
+    int numCheckpoints = numCheckpoints(numTriangles, CHECKPOINT_INTERVAL);
+    if (checkpoints.length != numCheckpoints) checkpoints = new int[numCheckpoints][WIDTH * HEIGHT];
+
+    int[] pixels = RENDERER.getPixels();
+    RENDERER.clearClip();
+    RENDERER.clear();
+    INDEX.clear(numTriangles);
+    int index = 0;
+    for (float[] triangle : genome.getTriangles())
+    {
+      if (isCheckpoint(index)) System.arraycopy(pixels, 0, checkpoints[index / CHECKPOINT_INTERVAL - 1], 0, pixels.length);
+      System.arraycopy(triangle, 0, genes, index * GENES_PER_TRIANGLE, GENES_PER_TRIANGLE);
+      indexTriangle(index);
+      render(triangle);
+      index++;
+    }
+    RENDERER.markComplete();
+
+    markTilesDirty(0, 0, TILE_COLUMNS, TILE_ROWS);
+  }
+
+  private void recomposite(Genome genome, int[] target, int firstChanged)
+  {
+    int[] pixels = RENDERER.getPixels();
+    // Start from the closest checkpoint that the changes did not affect, or from a cleared
+    // image if there is none
+    int start = checkpoints.length == 0 ? 0 : Math.min(firstChanged / CHECKPOINT_INTERVAL, checkpoints.length);
+    RENDERER.setClip(regionX0, regionY0, regionX1 - regionX0, regionY1 - regionY0);
+    if (start == 0) RENDERER.clear();
+    else copyRegion(checkpoints[start - 1], pixels);
+
+    // Only the triangles that touch the region have to be drawn again, and the index hands
+    // them back in drawing order
+    int numOverlapping = INDEX.query(regionX0, regionY0, regionX1, regionY1, start * CHECKPOINT_INTERVAL);
+    int[] overlapping = INDEX.getResults();
+    int next = 0;
+    for (int checkpoint = start + 1; checkpoint <= checkpoints.length; checkpoint++)
+    {
+      int checkpointIndex = checkpoint * CHECKPOINT_INTERVAL;
+      while (next < numOverlapping && overlapping[next] < checkpointIndex) renderGenes(overlapping[next++]);
+      copyRegion(pixels, checkpoints[checkpoint - 1]);
+    }
+    while (next < numOverlapping) renderGenes(overlapping[next++]);
+    RENDERER.clearClip();
+    RENDERER.markComplete();
+
+    // Every tile overlapping the region is dirty
+    markTilesDirty(regionX0 / TILE_SIZE, regionY0 / TILE_SIZE,
+                   (regionX1 - 1) / TILE_SIZE + 1, (regionY1 - 1) / TILE_SIZE + 1);
+  }
+
+  /**
+   * Marks the tiles in [column0, column1) x [row0, row1) as needing to be rescored.
+   */
+  private void markTilesDirty(int column0, int row0, int column1, int row1)
+  {
+    for (int row = row0; row < row1; row++)
+    {
+      for (int column = column0; column < column1; column++)
+      {
+        TILE_DIRTY[row * TILE_COLUMNS + column] = true;
+        TILE_ERROR[row * TILE_COLUMNS + column] = -1;
+      }
+    }
+  }
+
+  /**
+   * Adds up the error of the clean tiles and then rescores dirty tiles one at a time,
+   * stopping early if the total goes over maxError.
+   */
+  private long scoreTiles(int[] target, long maxError)
+  {
+    long error = 0;
+    for (int i = 0; i < TILE_ERROR.length; i++)
+    {
+      if (!TILE_DIRTY[i]) error += TILE_ERROR[i];
+    }
+    if (error > maxError) return REJECTED_ERROR;
+
+    int[] pixels = RENDERER.getPixels();
+    for (int i = 0; i < TILE_ERROR.length; i++)
+    {
+      if (!TILE_DIRTY[i]) continue;
+      int x0 = (i % TILE_COLUMNS) * TILE_SIZE;
+      int x1 = Math.min(x0 + TILE_SIZE, WIDTH);
+      int y0 = (i / TILE_COLUMNS) * TILE_SIZE;
+      int y1 = Math.min(y0 + TILE_SIZE, HEIGHT);
+      long tileError = 0;
+      for (int y = y0; y < y1; y++)
+      {
+        tileError += FitnessCalculator.sumSquaredError(target, pixels, y * WIDTH + x0, y * WIDTH + x1);
+      }
+      TILE_ERROR[i] = tileError;
+      TILE_DIRTY[i] = false;
+      error += tileError;
+      if (error > maxError) return REJECTED_ERROR;
+    }
+    return error;
+  }
+
+  private void render(float[] triangle)
+  {
+    MANAGER.setTriangleData(triangle);
+    RENDERER.renderTriangle(MANAGER.getXCoordinates(X_COORDINATES), MANAGER.getYCoordinates(Y_COORDINATES),
+                            MANAGER.getColor(COLOR));
+  }
+
+  private void renderGenes(int index)
+  {
+    System.arraycopy(genes, index * GENES_PER_TRIANGLE, TRIANGLE, 0, GENES_PER_TRIANGLE);
+    render(TRIANGLE);
+  }
+
+  private boolean isCheckpoint(int triangleIndex)
+  {
+    return CHECKPOINT_INTERVAL > 0 && triangleIndex > 0 && triangleIndex % CHECKPOINT_INTERVAL == 0 &&
+           triangleIndex / CHECKPOINT_INTERVAL <= checkpoints.length;
+  }
+
+  private void copyRegion(int[] source, int[] destination)
+  {
+    for (int y = regionY0; y < regionY1; y++)
+    {
+      System.arraycopy(source, y * WIDTH + regionX0, destination, y * WIDTH + regionX0, regionX1 - regionX0);
+    }
+  }
+
+  private boolean matchesGenes(float[] triangle, int offset)
+  {
+    for (int i = 0; i < GENES_PER_TRIANGLE; i++)
+    {
+      if (triangle[i] != genes[offset + i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Grows the region to include the pixels a triangle can touch. Genes are ordered
+   * { x1, y1, x2, y2, x3, y3, r, g, b, a } and vertices are truncated to ints when
+   * rendered - the extra pixel on each side covers antialiasing.
+   */
+  private void expandRegion(float[] data, int offset)
+  {
+    regionX0 = Math.min(regionX0, minVertex(data, offset, SCALE_X) - 1);
+    regionY0 = Math.min(regionY0, minVertex(data, offset + 1, SCALE_Y) - 1);
+    regionX1 = Math.max(regionX1, maxVertex(data, offset, SCALE_X) + 2);
+    regionY1 = Math.max(regionY1, maxVertex(data, offset + 1, SCALE_Y) + 2);
+  }
+
+  /**
+   * Updates the bin index with the bounds of triangle index in genes, using the same margins
+   * as expandRegion.
+   */
+  private void indexTriangle(int index)
+  {
+    int offset = index * GENES_PER_TRIANGLE;
+    INDEX.set(index, minVertex(genes, offset, SCALE_X) - 1, minVertex(genes, offset + 1, SCALE_Y) - 1,
+              maxVertex(genes, offset, SCALE_X) + 2, maxVertex(genes, offset + 1, SCALE_Y) + 2);
+  }
+
+  // Vertices are scaled the same way TriangleManager scales them before they are truncated
+  private int minVertex(float[] data, int offset, float scale)
+  {
+    return Math.min((int)(data[offset] * scale), Math.min((int)(data[offset + 2] * scale), (int)(data[offset + 4] * scale)));
+  }
+
+  private int maxVertex(float[] data, int offset, float scale)
+  {
+    return Math.max((int)(data[offset] * scale), Math.max((int)(data[offset + 2] * scale), (int)(data[offset + 4] * scale)));
+  }
+}
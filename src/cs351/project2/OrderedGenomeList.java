@@ -5,8 +5,10 @@ import cs351.core.Genome;
 import cs351.core.Mutator;
 import cs351.core.Tribe;
 import cs351.project2.hillclimbing.AdaptiveHillClimbing;
+import cs351.project2.hillclimbing.OptimalColorHillClimbing;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * An OrderedGenomeList provides an easy way for storing Genomes and for
@@ -20,10 +22,14 @@ import java.util.*;
 public final class OrderedGenomeList implements Tribe, Iterable<Genome>
 {
   private static final int DEFAULT_CAPACITY = 25; // for initial array
+  // Fraction of mutators that solve for color instead of guessing - off unless run with
+  // -Dcs351.optimalColorChance=F (0 to 1)
+  private static final float OPTIMAL_COLOR_CHANCE = Float.parseFloat(System.getProperty("cs351.optimalColorChance", "0"));
   private int size = 0;
   private int internalCapacity;
   private Genome[] list;
   private boolean isDirty = false; // true if the list needs reordering
+  private volatile long version = 0; // see getVersion()
   private EvolutionEngine engine;
 
   /**
@@ -84,10 +90,20 @@ public final class OrderedGenomeList implements Tribe, Iterable<Genome>
     return new GenomeIterator();
   }
 
+  /**
+   * Gets a mutator for the genome. This is an AdaptiveHillClimbing, except for
+   * OPTIMAL_COLOR_CHANCE of the time (never by default) when it is an OptimalColorHillClimbing,
+   * which only moves vertices and solves for the color that goes with the new shape.
+   *
+   * @param genome genome to mutate
+   * @return mutator set up for the genome
+   */
   @Override
   public Mutator getMutatorForGenome(Genome genome) throws RuntimeException
   {
-    Mutator mutator = new AdaptiveHillClimbing();
+    Mutator mutator;
+    if (ThreadLocalRandom.current().nextFloat() < OPTIMAL_COLOR_CHANCE) mutator = new OptimalColorHillClimbing();
+    else mutator = new AdaptiveHillClimbing();
     mutator.setGenome(genome);
     return mutator;
   }
@@ -100,6 +116,7 @@ public final class OrderedGenomeList implements Tribe, Iterable<Genome>
     list[size] = genome;
     genome.setTribe(this); // now a member of this tribe
     ++size;
+    ++version;
     engine.incrementPopulationCount();
   }
 
@@ -114,6 +131,7 @@ public final class OrderedGenomeList implements Tribe, Iterable<Genome>
     list[index] = null;
     for (int i = index; i < size - 1; i++) list[i] = list[i + 1];
     --size;
+    ++version;
     engine.decrementPopulationCount();
   }
 
@@ -128,6 +146,7 @@ public final class OrderedGenomeList implements Tribe, Iterable<Genome>
     list[index] = null;
     for (int i = index; i < size - 1; i++) list[i] = list[i + 1];
     --size;
+    ++version;
     engine.decrementPopulationCount();
   }
 
@@ -140,6 +159,7 @@ public final class OrderedGenomeList implements Tribe, Iterable<Genome>
       list[i] = null;
     }
     size = 0;
+    ++version;
   }
 
   @Override
@@ -174,7 +194,16 @@ public final class OrderedGenomeList implements Tribe, Iterable<Genome>
   @Override
   public void sort() {
     isDirty = false;
+    // Mutations usually leave the order alone, and then the version shouldn't change
+    if (isSorted()) return;
     Arrays.sort(list, 0, size, (first, second) -> -1 * Double.compare(first.getFitness(), second.getFitness()));
+    ++version;
+  }
+
+  @Override
+  public long getVersion()
+  {
+    return version;
   }
 
   /**
@@ -205,12 +234,22 @@ public final class OrderedGenomeList implements Tribe, Iterable<Genome>
    * @return Genome if it exists
    * @throws IllegalArgumentException thrown if the index was not valid
    */
+  @Override
   public Genome get(int index) throws IllegalArgumentException
   {
     if (!isValidIndex(index)) throw new IllegalArgumentException(index + " is not valid");
     return list[index];
   }
 
+  private boolean isSorted()
+  {
+    for (int i = 1; i < size; i++)
+    {
+      if (Double.compare(list[i - 1].getFitness(), list[i].getFitness()) < 0) return false;
+    }
+    return true;
+  }
+
   private boolean needsToGrow()
   {
     return size == internalCapacity;
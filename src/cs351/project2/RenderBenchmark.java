@@ -0,0 +1,148 @@
+package cs351.project2;
+
+import java.util.Random;
+
+/**
+ * Measures how long it takes to draw a genome in every render mode at every render
+ * quality, and how far each one's output is from an exact render. Modes that support span
+ * caching are also timed with it on - the same genomes are drawn over and over, so every
+ * triangle after the first draw is a cache hit, which is the best case for color-only changes. The genomes are random
+ * triangles (made the same way every run), so results can be compared between machines.
+ *
+ * Usage: RenderBenchmark [width] [height] [triangles] [repetitions]
+ *
+ * @author Justin
+ */
+public class RenderBenchmark
+{
+  private static final int GENES_PER_TRIANGLE = 10;
+  private static final int NUM_GENOMES = 8;
+  private static final long SEED = 351;
+
+  /**
+   * Entry point.
+   * @param args command line arguments (all optional): width, height, triangles per genome
+   *             and how many times to draw each genome
+   */
+  public static void main(String[] args)
+  {
+    int width = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+    int height = args.length > 1 ? Integer.parseInt(args[1]) : 413;
+    int numTriangles = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    int repetitions = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+    float[][][] genomes = new float[NUM_GENOMES][][];
+    Random rand = new Random(SEED);
+    for (int i = 0; i < NUM_GENOMES; i++) genomes[i] = randomGenome(rand, width, height, numTriangles);
+
+    // Reference renders to measure each tier's error against
+    TriangleRenderer reference = new TriangleRenderer(width, height, TriangleRenderer.RenderMode.SCANLINE);
+    reference.setQuality(TriangleRenderer.RenderQuality.EXACT);
+    int[][] referencePixels = new int[NUM_GENOMES][];
+    for (int i = 0; i < NUM_GENOMES; i++)
+    {
+      draw(reference, genomes[i]);
+      referencePixels[i] = reference.getPixels().clone();
+    }
+
+    System.out.println(width + "x" + height + ", " + numTriangles + " triangles per genome");
+    System.out.println(String.format("%-12s %-16s %14s %14s %14s", "mode", "quality", "us per genome",
+                                     "us cached", "mean error"));
+    for (TriangleRenderer.RenderMode mode : TriangleRenderer.RenderMode.values())
+    {
+      for (TriangleRenderer.RenderQuality quality : TriangleRenderer.RenderQuality.values())
+      {
+        TriangleRenderer renderer = new TriangleRenderer(width, height, mode);
+        renderer.setQuality(quality);
+        double microseconds = time(renderer, genomes, repetitions);
+        String cached = "-";
+        if (mode != TriangleRenderer.RenderMode.JAVA2D)
+        {
+          TriangleRenderer cachedRenderer = new TriangleRenderer(width, height, mode);
+          cachedRenderer.setQuality(quality);
+          cachedRenderer.setSpanCaching(true);
+          cached = String.format("%.1f", time(cachedRenderer, genomes, repetitions));
+        }
+
+        double error = 0.0;
+        for (int i = 0; i < NUM_GENOMES; i++)
+        {
+          draw(renderer, genomes[i]);
+          error += meanChannelDifference(renderer.getPixels(), referencePixels[i]);
+        }
+        System.out.println(String.format("%-12s %-16s %14.1f %14s %14.3f", mode, quality, microseconds, cached,
+                                         error / NUM_GENOMES));
+      }
+    }
+  }
+
+  /**
+   * Gets the average number of microseconds the renderer takes to draw one of the genomes.
+   */
+  private static double time(TriangleRenderer renderer, float[][][] genomes, int repetitions)
+  {
+    // Warm up so the JIT has compiled the render loop before it is timed
+    for (int i = 0; i < NUM_GENOMES * 2; i++) draw(renderer, genomes[i % NUM_GENOMES]);
+
+    // Each genome is drawn repeatedly before moving on, so a span cache only has to hold one
+    long start = System.nanoTime();
+    for (float[][] genome : genomes)
+    {
+      for (int rep = 0; rep < repetitions; rep++) draw(renderer, genome);
+    }
+    return (System.nanoTime() - start) / 1000.0 / (repetitions * NUM_GENOMES);
+  }
+
+  private static float[][] randomGenome(Random rand, int width, int height, int numTriangles)
+  {
+    float[][] genome = new float[numTriangles][GENES_PER_TRIANGLE];
+    for (float[] triangle : genome)
+    {
+      for (int vertex = 0; vertex < 3; vertex++)
+      {
+        triangle[vertex * 2] = rand.nextFloat() * width;
+        triangle[vertex * 2 + 1] = rand.nextFloat() * height;
+      }
+      triangle[6] = rand.nextInt(256);
+      triangle[7] = rand.nextInt(256);
+      triangle[8] = rand.nextInt(256);
+      triangle[9] = 0.2f + rand.nextFloat() * 0.6f;
+    }
+    return genome;
+  }
+
+  private static void draw(TriangleRenderer renderer, float[][] genome)
+  {
+    float[] xVertices = new float[3];
+    float[] yVertices = new float[3];
+    float[] color = new float[4];
+    renderer.clear();
+    for (float[] triangle : genome)
+    {
+      for (int vertex = 0; vertex < 3; vertex++)
+      {
+        xVertices[vertex] = triangle[vertex * 2];
+        yVertices[vertex] = triangle[vertex * 2 + 1];
+      }
+      System.arraycopy(triangle, 6, color, 0, 4);
+      renderer.renderTriangle(xVertices, yVertices, color);
+    }
+    renderer.markComplete();
+  }
+
+  /**
+   * Gets the average absolute difference per color channel between two packed ARGB images.
+   */
+  private static double meanChannelDifference(int[] first, int[] second)
+  {
+    long total = 0;
+    for (int i = 0; i < first.length; i++)
+    {
+      for (int shift = 0; shift < 24; shift += 8)
+      {
+        total += Math.abs(((first[i] >> shift) & 0xFF) - ((second[i] >> shift) & 0xFF));
+      }
+    }
+    return total / (first.length * 3.0);
+  }
+}
@@ -0,0 +1,795 @@
+package cs351.project2;
+
+import cs351.core.FitnessFunction;
+import cs351.core.Genome;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the shortcuts the renderer and fitness calculator take give exactly the same
+ * results as doing the work the long way. Random genomes (made the same way every run) are
+ * mutated over and over, and after each mutation:
+ *
+ * - generateDeltaFitness is compared against generateFitness in SCANLINE and FIXED_POINT mode
+ *   at every render quality
+ * - generateFitness is compared against itself with coverage scoring off, with bands evaluated
+ *   in parallel and against a batch evaluation of the same genomes
+ * - a renderer with span caching is compared pixel for pixel against one without
+ * - a renderer drawing in clipped bands is compared pixel for pixel against one drawing the
+ *   whole image
+ *
+ * - bounded evaluations (single, delta and batch, with and without screening) are checked to
+ *   give either the exact fitness or REJECTED, and REJECTED only below the bound
+ * - in JAVA2D mode, delta and bounded evaluations are compared against full ones to within
+ *   JAVA2D_TOLERANCE
+ * - a vertex is moved, the color solved and the genome delta evaluated against its old
+ *   fitness, then put back if it got worse, the way OptimalColorHillClimbing does it
+ *
+ * It also checks TriangleBinIndex queries against a brute force search, that a FIXED_POINT
+ * render doesn't depend on what the renderer drew before, that fitness values given back
+ * by the memo are the ones that were evaluated, that genomes evaluated at a coarse pyramid
+ * level get the same fitness after refining as they do from a calculator that started at
+ * that level, and that screening estimates come out the same every time. A checksum of the
+ * FIXED_POINT renders is printed so that runs on different machines can be compared.
+ *
+ * Exits with a status of 1 if any check found a mismatch.
+ *
+ * Usage: RenderEquivalenceCheck [width] [height] [triangles] [mutations]
+ *
+ * @author Justin
+ */
+public class RenderEquivalenceCheck
+{
+  private static final int GENES_PER_TRIANGLE = 10;
+  private static final int NUM_GENOMES = 8;
+  private static final long SEED = 351;
+  private static final int NUM_BANDS = 5;
+  private static final int BIN_SIZE = 32; // pixels
+  private static final int PYRAMID_LEVELS = 3;
+  private static final int SCREENING_STRIDE = 8; // rows
+  private static final double SCREENING_ERRORS = 3.0;
+  // Bounds are picked up to this far above or below a genome's fitness
+  private static final double BOUND_SPREAD = 0.005;
+  // JAVA2D can draw a clipped region one shade different from the whole image (see
+  // GenomeRenderCache), which moves the fitness by far less than this
+  private static final double JAVA2D_TOLERANCE = 1e-6;
+  private static final TriangleRenderer.RenderMode[] EXACT_MODES = { TriangleRenderer.RenderMode.SCANLINE,
+                                                                      TriangleRenderer.RenderMode.FIXED_POINT };
+  private static int numFailures = 0;
+
+  /**
+   * Entry point.
+   * @param args command line arguments (all optional): width, height, triangles per genome
+   *             and how many mutations each check makes
+   */
+  public static void main(String[] args)
+  {
+    int width = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    int height = args.length > 1 ? Integer.parseInt(args[1]) : 161;
+    int numTriangles = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    int mutations = args.length > 3 ? Integer.parseInt(args[3]) : 300;
+
+    WritableImage target = makeTarget(width, height);
+    System.out.println(width + "x" + height + ", " + numTriangles + " triangles per genome, " + mutations +
+                       " mutations per check");
+    System.out.println(String.format("%-64s %10s %10s", "check", "compared", "mismatched"));
+
+    for (TriangleRenderer.RenderMode mode : EXACT_MODES)
+    {
+      for (TriangleRenderer.RenderQuality quality : TriangleRenderer.RenderQuality.values())
+      {
+        checkDeltaFitness(target, mode, quality, numTriangles, mutations);
+      }
+    }
+    checkFullFitness(target, numTriangles, mutations);
+    for (TriangleRenderer.RenderMode mode : EXACT_MODES)
+    {
+      for (TriangleRenderer.RenderQuality quality : TriangleRenderer.RenderQuality.values())
+      {
+        checkRenders(mode, quality, width, height, numTriangles, mutations);
+      }
+    }
+    checkFixedPoint(width, height, numTriangles);
+    checkBinIndex(width, height, numTriangles, mutations);
+    checkMemo(target, numTriangles);
+    for (TriangleRenderer.RenderMode mode : EXACT_MODES)
+    {
+      checkBoundedFitness(target, mode, TriangleRenderer.RenderQuality.NONE, numTriangles, mutations);
+    }
+    checkBoundedFitness(target, TriangleRenderer.RenderMode.FIXED_POINT, TriangleRenderer.RenderQuality.SUPERSAMPLE_2X2,
+                        numTriangles, mutations);
+    checkScreening(target, TriangleRenderer.RenderQuality.NONE, numTriangles, mutations);
+    checkScreening(target, TriangleRenderer.RenderQuality.SUPERSAMPLE_2X2, numTriangles, mutations);
+    checkJava2D(target, numTriangles, mutations);
+    checkPyramid(target, numTriangles, mutations);
+    checkColorSolveRevert(target, TriangleRenderer.RenderQuality.NONE, numTriangles, mutations);
+    checkColorSolveRevert(target, TriangleRenderer.RenderQuality.SUPERSAMPLE_2X2, numTriangles, mutations);
+
+    System.out.println(numFailures == 0 ? "All checks passed" : numFailures + " checks failed");
+    System.exit(numFailures == 0 ? 0 : 1);
+  }
+
+  /**
+   * Mutates genomes and compares the fitness generateDeltaFitness gives them against a full
+   * evaluation. The memo is turned off so that every call really evaluates the genome.
+   */
+  private static void checkDeltaFitness(WritableImage target, TriangleRenderer.RenderMode mode,
+                                        TriangleRenderer.RenderQuality quality, int numTriangles, int mutations)
+  {
+    FitnessCalculator calculator = makeCalculator(target, mode, quality);
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, target, numTriangles);
+    int mismatches = 0;
+    for (int i = 0; i < mutations; i++)
+    {
+      Genome genome = genomes[rand.nextInt(NUM_GENOMES)];
+      mutate(rand, genome, target);
+      if (calculator.generateDeltaFitness(null, genome) != calculator.generateFitness(null, genome)) mismatches++;
+    }
+    report("delta vs full fitness, " + mode + " " + quality, mutations, mismatches);
+  }
+
+  /**
+   * Compares full evaluations against themselves with coverage scoring off, with bands
+   * evaluated in parallel and in a batch.
+   */
+  private static void checkFullFitness(WritableImage target, int numTriangles, int mutations)
+  {
+    TriangleRenderer.RenderMode mode = TriangleRenderer.RenderMode.SCANLINE;
+    TriangleRenderer.RenderQuality quality = TriangleRenderer.RenderQuality.NONE;
+    FitnessCalculator reference = makeCalculator(target, mode, quality);
+    FitnessCalculator fullScan = makeCalculator(target, mode, quality);
+    fullScan.setCoverageScoring(false);
+    FitnessCalculator banded = makeCalculator(target, mode, quality);
+    banded.setBandParallelism(NUM_BANDS, 2);
+    FitnessCalculator batched = makeCalculator(target, mode, quality);
+
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, target, numTriangles);
+    List<Genome> batch = new ArrayList<>(NUM_GENOMES);
+    double[] batchFitness = new double[NUM_GENOMES];
+    int fullScanMismatches = 0;
+    int bandedMismatches = 0;
+    int batchedMismatches = 0;
+    int numBatches = mutations / NUM_GENOMES;
+    for (int i = 0; i < numBatches; i++)
+    {
+      batch.clear();
+      for (Genome genome : genomes)
+      {
+        mutate(rand, genome, target);
+        batch.add(genome);
+      }
+      batched.generateFitness(null, batch, batchFitness);
+      for (int j = 0; j < NUM_GENOMES; j++)
+      {
+        double fitness = reference.generateFitness(null, genomes[j]);
+        if (fullScan.generateFitness(null, genomes[j]) != fitness) fullScanMismatches++;
+        if (banded.generateFitness(null, genomes[j]) != fitness) bandedMismatches++;
+        if (batchFitness[j] != fitness) batchedMismatches++;
+      }
+    }
+    int compared = numBatches * NUM_GENOMES;
+    report("coverage scoring vs every pixel", compared, fullScanMismatches);
+    report("banded (" + NUM_BANDS + " bands) vs single thread", compared, bandedMismatches);
+    report("batch vs single genome", compared, batchedMismatches);
+  }
+
+  /**
+   * Mutates genomes and compares renders with span caching and in clipped bands against
+   * a plain render of the whole image.
+   */
+  private static void checkRenders(TriangleRenderer.RenderMode mode, TriangleRenderer.RenderQuality quality,
+                                   int width, int height, int numTriangles, int mutations)
+  {
+    TriangleRenderer plain = new TriangleRenderer(width, height, mode);
+    plain.setQuality(quality);
+    TriangleRenderer cached = new TriangleRenderer(width, height, mode);
+    cached.setQuality(quality);
+    cached.setSpanCaching(true);
+    TriangleRenderer banded = new TriangleRenderer(width, height, mode);
+    banded.setQuality(quality);
+
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, width, height, numTriangles);
+    int cachedMismatches = 0;
+    int bandedMismatches = 0;
+    for (int i = 0; i < mutations; i++)
+    {
+      Genome genome = genomes[rand.nextInt(NUM_GENOMES)];
+      mutate(rand, genome, width, height);
+      draw(plain, genome);
+      draw(cached, genome);
+      drawBanded(banded, genome);
+      if (!Arrays.equals(plain.getPixels(), cached.getPixels())) cachedMismatches++;
+      if (!Arrays.equals(plain.getPixels(), banded.getPixels())) bandedMismatches++;
+    }
+    report("span cached vs uncached, " + mode + " " + quality, mutations, cachedMismatches);
+    report("banded vs whole render, " + mode + " " + quality, mutations, bandedMismatches);
+  }
+
+  /**
+   * Checks that a FIXED_POINT renderer that has drawn other genomes draws the same pixels as
+   * a new one, and prints a checksum of the renders to compare between machines.
+   */
+  private static void checkFixedPoint(int width, int height, int numTriangles)
+  {
+    for (TriangleRenderer.RenderQuality quality : TriangleRenderer.RenderQuality.values())
+    {
+      TriangleRenderer reused = new TriangleRenderer(width, height, TriangleRenderer.RenderMode.FIXED_POINT);
+      reused.setQuality(quality);
+      Genome[] genomes = makeGenomes(new Random(SEED), width, height, numTriangles);
+      long checksum = 0;
+      int mismatches = 0;
+      for (Genome genome : genomes)
+      {
+        TriangleRenderer fresh = new TriangleRenderer(width, height, TriangleRenderer.RenderMode.FIXED_POINT);
+        fresh.setQuality(quality);
+        draw(fresh, genome);
+        draw(reused, genome);
+        if (!Arrays.equals(fresh.getPixels(), reused.getPixels())) mismatches++;
+        checksum = checksum * 31 + Arrays.hashCode(fresh.getPixels());
+      }
+      report("FIXED_POINT fresh vs reused renderer, " + quality, NUM_GENOMES, mismatches);
+      System.out.println(String.format("  FIXED_POINT %s checksum %016x", quality, checksum));
+    }
+  }
+
+  /**
+   * Moves triangle bounds around a TriangleBinIndex and compares its query results against
+   * checking every triangle.
+   */
+  private static void checkBinIndex(int width, int height, int numTriangles, int mutations)
+  {
+    Random rand = new Random(SEED);
+    TriangleBinIndex index = new TriangleBinIndex(width, height, BIN_SIZE);
+    int[][] bounds = new int[numTriangles][];
+    index.clear(numTriangles);
+    for (int i = 0; i < numTriangles; i++)
+    {
+      bounds[i] = randomBounds(rand, width, height);
+      index.set(i, bounds[i][0], bounds[i][1], bounds[i][2], bounds[i][3]);
+    }
+
+    int mismatches = 0;
+    int[] expected = new int[numTriangles];
+    for (int i = 0; i < mutations; i++)
+    {
+      int triangle = rand.nextInt(numTriangles);
+      bounds[triangle] = randomBounds(rand, width, height);
+      index.set(triangle, bounds[triangle][0], bounds[triangle][1], bounds[triangle][2], bounds[triangle][3]);
+
+      int[] region = randomBounds(rand, width, height);
+      int minIndex = rand.nextInt(numTriangles);
+      int count = index.query(region[0], region[1], region[2], region[3], minIndex);
+      int expectedCount = 0;
+      for (int j = minIndex; j < numTriangles; j++)
+      {
+        if (overlaps(bounds[j], region, width, height)) expected[expectedCount++] = j;
+      }
+      if (count != expectedCount ||
+          !Arrays.equals(Arrays.copyOf(index.getResults(), count), Arrays.copyOf(expected, expectedCount)))
+      {
+        mismatches++;
+      }
+    }
+    report("bin index vs brute force", mutations, mismatches);
+  }
+
+  /**
+   * Evaluates genomes with the memo on, then copies of them (which have the same content hash
+   * and so come from the memo), and compares both against evaluations with the memo off.
+   */
+  private static void checkMemo(WritableImage target, int numTriangles)
+  {
+    TriangleRenderer.RenderMode mode = TriangleRenderer.RenderMode.SCANLINE;
+    TriangleRenderer.RenderQuality quality = TriangleRenderer.RenderQuality.NONE;
+    FitnessCalculator reference = makeCalculator(target, mode, quality);
+    FitnessCalculator memoized = makeCalculator(target, mode, quality);
+    memoized.setFitnessMemoSize(NUM_GENOMES * 4);
+
+    Genome[] genomes = makeGenomes(new Random(SEED), target, numTriangles);
+    int mismatches = 0;
+    for (Genome genome : genomes)
+    {
+      double fitness = reference.generateFitness(null, genome);
+      if (memoized.generateFitness(null, genome) != fitness) mismatches++;
+      if (memoized.generateFitness(null, copy(genome)) != fitness) mismatches++;
+      if (memoized.generateDeltaFitness(null, copy(genome)) != fitness) mismatches++;
+    }
+    report("memo hits vs evaluated fitness", NUM_GENOMES * 3, mismatches);
+  }
+
+  /**
+   * Mutates genomes and evaluates them with a bound a little above, at or a little below their
+   * fitness, one at a time, with generateDeltaFitness and in batches.
+   */
+  private static void checkBoundedFitness(WritableImage target, TriangleRenderer.RenderMode mode,
+                                          TriangleRenderer.RenderQuality quality, int numTriangles, int mutations)
+  {
+    FitnessCalculator reference = makeCalculator(target, mode, quality);
+    FitnessCalculator bounded = makeCalculator(target, mode, quality);
+    FitnessCalculator delta = makeCalculator(target, mode, quality);
+    FitnessCalculator batched = makeCalculator(target, mode, quality);
+
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, target, numTriangles);
+    int boundedMismatches = 0;
+    int deltaMismatches = 0;
+    int rejected = 0;
+    for (int i = 0; i < mutations; i++)
+    {
+      Genome genome = genomes[rand.nextInt(NUM_GENOMES)];
+      mutate(rand, genome, target);
+      double fitness = reference.generateFitness(null, genome);
+      double bound = randomBound(rand, fitness);
+      double result = bounded.generateFitness(null, genome, bound);
+      if (!isBoundedResult(result, fitness, bound)) boundedMismatches++;
+      if (result == FitnessFunction.REJECTED) rejected++;
+      if (!isBoundedResult(delta.generateDeltaFitness(null, genome, bound), fitness, bound)) deltaMismatches++;
+    }
+
+    List<Genome> batch = new ArrayList<>(NUM_GENOMES);
+    double[] batchFitness = new double[NUM_GENOMES];
+    int batchMismatches = 0;
+    int numBatches = mutations / NUM_GENOMES;
+    for (int i = 0; i < numBatches; i++)
+    {
+      batch.clear();
+      for (Genome genome : genomes)
+      {
+        mutate(rand, genome, target);
+        batch.add(genome);
+      }
+      double bound = randomBound(rand, reference.generateFitness(null, genomes[rand.nextInt(NUM_GENOMES)]));
+      batched.generateFitness(null, batch, batchFitness, bound);
+      // Each genome may be held to the best fitness before it in the batch as well as the bound
+      double best = bound;
+      for (int j = 0; j < NUM_GENOMES; j++)
+      {
+        double fitness = reference.generateFitness(null, genomes[j]);
+        if (!isBoundedResult(batchFitness[j], fitness, best)) batchMismatches++;
+        best = Math.max(best, fitness);
+      }
+    }
+    report("bounded vs full fitness, " + mode + " " + quality, mutations, boundedMismatches);
+    report("bounded delta vs full fitness, " + mode + " " + quality, mutations, deltaMismatches);
+    report("bounded batch vs full fitness, " + mode + " " + quality, numBatches * NUM_GENOMES, batchMismatches);
+    System.out.println(String.format("  %d of %d bounded evaluations rejected", rejected, mutations));
+  }
+
+  /**
+   * Evaluates genomes with screening on, with a bound a little above, at or a little below their
+   * fitness, and checks that the same genome always gets the same estimate. Screening samples with
+   * no antialiasing whatever quality genomes are scored with, the same as GamePopulation sets it up.
+   */
+  private static void checkScreening(WritableImage target, TriangleRenderer.RenderQuality quality,
+                                     int numTriangles, int mutations)
+  {
+    TriangleRenderer.RenderMode mode = TriangleRenderer.RenderMode.FIXED_POINT;
+    FitnessCalculator reference = makeCalculator(target, mode, quality);
+    FitnessCalculator screened = makeCalculator(target, mode, quality);
+    screened.setScreening(SCREENING_STRIDE, SCREENING_ERRORS);
+    screened.setScreeningQuality(TriangleRenderer.RenderQuality.NONE);
+    FitnessCalculator batched = makeCalculator(target, mode, quality);
+    batched.setScreening(SCREENING_STRIDE, SCREENING_ERRORS);
+    batched.setScreeningQuality(TriangleRenderer.RenderQuality.NONE);
+
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, target, numTriangles);
+    int boundedMismatches = 0;
+    int unboundedMismatches = 0;
+    int estimateMismatches = 0;
+    int rejected = 0;
+    for (int i = 0; i < mutations; i++)
+    {
+      Genome genome = genomes[rand.nextInt(NUM_GENOMES)];
+      mutate(rand, genome, target);
+      double fitness = reference.generateFitness(null, genome);
+      double bound = randomBound(rand, fitness);
+      double result = screened.generateFitness(null, genome, bound);
+      if (!isBoundedResult(result, fitness, bound)) boundedMismatches++;
+      if (result == FitnessFunction.REJECTED) rejected++;
+      if (screened.generateFitness(null, genome) != fitness) unboundedMismatches++;
+      FitnessCalculator.FitnessEstimate first = screened.estimateFitness(null, genome, SCREENING_STRIDE);
+      FitnessCalculator.FitnessEstimate second = screened.estimateFitness(null, copy(genome), SCREENING_STRIDE);
+      if (first.getFitness() != second.getFitness() || first.getStandardError() != second.getStandardError())
+      {
+        estimateMismatches++;
+      }
+    }
+
+    List<Genome> batch = new ArrayList<>(NUM_GENOMES);
+    double[] batchFitness = new double[NUM_GENOMES];
+    int batchMismatches = 0;
+    int numBatches = mutations / NUM_GENOMES;
+    for (int i = 0; i < numBatches; i++)
+    {
+      batch.clear();
+      for (Genome genome : genomes)
+      {
+        mutate(rand, genome, target);
+        batch.add(genome);
+      }
+      double bound = randomBound(rand, reference.generateFitness(null, genomes[rand.nextInt(NUM_GENOMES)]));
+      batched.generateFitness(null, batch, batchFitness, bound);
+      double best = bound;
+      for (int j = 0; j < NUM_GENOMES; j++)
+      {
+        double fitness = reference.generateFitness(null, genomes[j]);
+        if (!isBoundedResult(batchFitness[j], fitness, best)) batchMismatches++;
+        best = Math.max(best, fitness);
+      }
+    }
+    report("screened bounded vs full fitness, " + quality, mutations, boundedMismatches);
+    report("screened unbounded vs full fitness, " + quality, mutations, unboundedMismatches);
+    report("screened batch vs full fitness, " + quality, numBatches * NUM_GENOMES, batchMismatches);
+    report("screening estimate vs estimate of a copy, " + quality, mutations, estimateMismatches);
+    System.out.println(String.format("  %d of %d screened evaluations rejected", rejected, mutations));
+  }
+
+  /**
+   * Compares delta and bounded evaluations in JAVA2D mode against full ones. JAVA2D isn't
+   * exact across clipped regions, so fitness values only have to agree to within
+   * JAVA2D_TOLERANCE, and a rejection only has to be below the bound by that much.
+   */
+  private static void checkJava2D(WritableImage target, int numTriangles, int mutations)
+  {
+    TriangleRenderer.RenderMode mode = TriangleRenderer.RenderMode.JAVA2D;
+    TriangleRenderer.RenderQuality quality = TriangleRenderer.RenderQuality.NONE;
+    FitnessCalculator reference = makeCalculator(target, mode, quality);
+    FitnessCalculator delta = makeCalculator(target, mode, quality);
+    FitnessCalculator bounded = makeCalculator(target, mode, quality);
+
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, target, numTriangles);
+    int deltaMismatches = 0;
+    int boundedMismatches = 0;
+    int repeatMismatches = 0;
+    for (int i = 0; i < mutations; i++)
+    {
+      Genome genome = genomes[rand.nextInt(NUM_GENOMES)];
+      mutate(rand, genome, target);
+      double fitness = reference.generateFitness(null, genome);
+      if (reference.generateFitness(null, genome) != fitness) repeatMismatches++;
+      if (Math.abs(delta.generateDeltaFitness(null, genome) - fitness) > JAVA2D_TOLERANCE) deltaMismatches++;
+      double bound = randomBound(rand, fitness);
+      double result = bounded.generateFitness(null, genome, bound);
+      boolean matches = result == FitnessFunction.REJECTED ? fitness < bound + JAVA2D_TOLERANCE
+                                                           : Math.abs(result - fitness) <= JAVA2D_TOLERANCE;
+      if (!matches) boundedMismatches++;
+    }
+    report("full vs repeated full fitness, " + mode, mutations, repeatMismatches);
+    report("delta vs full fitness, " + mode, mutations, deltaMismatches);
+    report("bounded vs full fitness, " + mode, mutations, boundedMismatches);
+  }
+
+  /**
+   * Evaluates genomes (full, delta and bounded) at each pyramid level, refines to the next one
+   * and compares what the refined calculator gives them against a calculator that was moved to
+   * that level before it evaluated anything. At full resolution it is also compared against a
+   * calculator with no pyramid at all. The memo is on, since refining has to clear it.
+   */
+  private static void checkPyramid(WritableImage target, int numTriangles, int mutations)
+  {
+    TriangleRenderer.RenderMode mode = TriangleRenderer.RenderMode.FIXED_POINT;
+    TriangleRenderer.RenderQuality quality = TriangleRenderer.RenderQuality.NONE;
+    FitnessCalculator reference = makeCalculator(target, mode, quality);
+    FitnessCalculator refined = makeCalculator(target, mode, quality);
+    refined.setFitnessMemoSize(NUM_GENOMES * 4);
+    refined.setPyramidLevels(PYRAMID_LEVELS);
+    // Refine every time refineResolution is called
+    refined.setRefinementSchedule(0.0, 1);
+
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, target, numTriangles);
+    int mutationsPerLevel = Math.max(mutations / PYRAMID_LEVELS, 1);
+    int levelMismatches = 0;
+    int rescoreMismatches = 0;
+    int fullResolutionMismatches = 0;
+    int numRefinements = 0;
+    while (true)
+    {
+      // Leave the delta caches and memo full of this level's renders and fitness values
+      for (int i = 0; i < mutationsPerLevel; i++)
+      {
+        Genome genome = genomes[rand.nextInt(NUM_GENOMES)];
+        mutate(rand, genome, target);
+        double fitness = refined.generateFitness(null, genome);
+        if (refined.generateDeltaFitness(null, genome) != fitness) levelMismatches++;
+        if (!isBoundedResult(refined.generateDeltaFitness(null, genome, fitness), fitness, fitness)) levelMismatches++;
+      }
+      if (!refined.refineResolution(1.0)) break;
+      numRefinements++;
+
+      FitnessCalculator fresh = makeCalculator(target, mode, quality);
+      fresh.setPyramidLevels(PYRAMID_LEVELS);
+      fresh.setRefinementSchedule(0.0, 1);
+      for (int i = 0; i < numRefinements; i++) fresh.refineResolution(1.0);
+      for (Genome genome : genomes)
+      {
+        double fitness = fresh.generateFitness(null, genome);
+        if (refined.generateFitness(null, genome) != fitness) rescoreMismatches++;
+        if (refined.generateDeltaFitness(null, genome) != fitness) rescoreMismatches++;
+      }
+    }
+    for (Genome genome : genomes)
+    {
+      double fitness = reference.generateFitness(null, genome);
+      if (refined.generateFitness(null, genome) != fitness) fullResolutionMismatches++;
+      if (refined.generateDeltaFitness(null, genome) != fitness) fullResolutionMismatches++;
+    }
+    if (refined.getEvaluationWidth() != (int)target.getWidth()) fullResolutionMismatches++;
+    report("pyramid delta and bounded vs full fitness at each level", mutationsPerLevel * (numRefinements + 1) * 2,
+           levelMismatches);
+    report("refined rescore vs fresh calculator at each finer level",
+           numRefinements * NUM_GENOMES * 2, rescoreMismatches);
+    report("refined to full resolution vs no pyramid", NUM_GENOMES * 2 + 1, fullResolutionMismatches);
+  }
+
+  /**
+   * Does what OptimalColorHillClimbing does over and over: moves a vertex, solves the triangle's
+   * color, evaluates the genome with generateDeltaFitness bounded by its old fitness and puts the
+   * genes back if it got worse, without evaluating the genome again. The next delta evaluation
+   * then has to notice the genes that were put back as well as the new change. The memo is on,
+   * like it is in the engine, so genomes that were put back come from the memo.
+   */
+  private static void checkColorSolveRevert(WritableImage target, TriangleRenderer.RenderQuality quality,
+                                            int numTriangles, int mutations)
+  {
+    TriangleRenderer.RenderMode mode = TriangleRenderer.RenderMode.FIXED_POINT;
+    FitnessCalculator reference = makeCalculator(target, mode, quality);
+    FitnessCalculator calculator = makeCalculator(target, mode, quality);
+    calculator.setFitnessMemoSize(NUM_GENOMES * 4);
+    int width = (int)target.getWidth();
+    int height = (int)target.getHeight();
+
+    Random rand = new Random(SEED);
+    Genome[] genomes = makeGenomes(rand, target, numTriangles);
+    for (Genome genome : genomes) genome.setFitness(calculator.generateDeltaFitness(null, genome));
+    int mismatches = 0;
+    int reverted = 0;
+    for (int i = 0; i < mutations; i++)
+    {
+      Genome genome = genomes[rand.nextInt(NUM_GENOMES)];
+      List<float[]> triangles = new ArrayList<>(genome.getTriangles());
+      float[] triangle = triangles.get(rand.nextInt(triangles.size()));
+      float[] previousGenes = triangle.clone();
+      double previousFitness = genome.getFitness();
+
+      int vertex = rand.nextInt(3);
+      triangle[vertex * 2] = rand.nextFloat() * width;
+      triangle[vertex * 2 + 1] = rand.nextFloat() * height;
+      calculator.solveColor(genome, triangle);
+      genome.setFitness(0.0);
+      double fitness = reference.generateFitness(null, genome);
+      double result = calculator.generateDeltaFitness(null, genome, previousFitness);
+      if (!isBoundedResult(result, fitness, previousFitness)) mismatches++;
+      if (result >= previousFitness) genome.setFitness(result);
+      else
+      {
+        System.arraycopy(previousGenes, 0, triangle, 0, GENES_PER_TRIANGLE);
+        genome.setFitness(previousFitness);
+        reverted++;
+      }
+    }
+    for (Genome genome : genomes)
+    {
+      double fitness = reference.generateFitness(null, genome);
+      if (genome.getFitness() != fitness) mismatches++;
+      if (calculator.generateDeltaFitness(null, genome) != fitness) mismatches++;
+    }
+    report("solve color, revert, delta vs full fitness, " + quality, mutations + NUM_GENOMES * 2, mismatches);
+    System.out.println(String.format("  %d of %d changes put back", reverted, mutations));
+  }
+
+  /**
+   * Checks a result from a bounded evaluation: it has to be either the exact fitness, or
+   * REJECTED when the exact fitness is below the bound.
+   */
+  private static boolean isBoundedResult(double result, double fitness, double minFitness)
+  {
+    return result == fitness || (result == FitnessFunction.REJECTED && fitness < minFitness);
+  }
+
+  /**
+   * Picks a bound a little below the fitness, the fitness itself or a little above it, with
+   * the same chance of each.
+   */
+  private static double randomBound(Random rand, double fitness)
+  {
+    switch (rand.nextInt(3))
+    {
+      case 0:
+        return fitness - rand.nextDouble() * BOUND_SPREAD;
+      case 1:
+        return fitness;
+      default:
+        return fitness + rand.nextDouble() * BOUND_SPREAD;
+    }
+  }
+
+  private static void report(String check, int compared, int mismatches)
+  {
+    System.out.println(String.format("%-64s %10d %10d%s", check, compared, mismatches, mismatches == 0 ? "" : "  FAILED"));
+    if (mismatches > 0) numFailures++;
+  }
+
+  /**
+   * Makes a calculator for the target with the memo off, so every call evaluates the genome.
+   */
+  private static FitnessCalculator makeCalculator(WritableImage target, TriangleRenderer.RenderMode mode,
+                                                  TriangleRenderer.RenderQuality quality)
+  {
+    FitnessCalculator calculator = new FitnessCalculator();
+    calculator.setTargetImage(target);
+    calculator.setRenderMode(mode);
+    calculator.setRenderQuality(quality);
+    calculator.setFitnessMemoSize(0);
+    return calculator;
+  }
+
+  /**
+   * Makes a smooth gradient with some noise on top, so that neither flat colors nor sharp
+   * edges dominate the error.
+   */
+  private static WritableImage makeTarget(int width, int height)
+  {
+    Random rand = new Random(SEED);
+    int[] pixels = new int[width * height];
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        int red = Math.min(x * 255 / width + rand.nextInt(16), 255);
+        int green = Math.min(y * 255 / height + rand.nextInt(16), 255);
+        int blue = (x + y + rand.nextInt(16)) & 0xFF;
+        pixels[y * width + x] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+      }
+    }
+    WritableImage image = new WritableImage(width, height);
+    image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+    return image;
+  }
+
+  private static Genome[] makeGenomes(Random rand, WritableImage target, int numTriangles)
+  {
+    return makeGenomes(rand, (int)target.getWidth(), (int)target.getHeight(), numTriangles);
+  }
+
+  private static Genome[] makeGenomes(Random rand, int width, int height, int numTriangles)
+  {
+    Genome[] genomes = new Genome[NUM_GENOMES];
+    for (int i = 0; i < NUM_GENOMES; i++)
+    {
+      genomes[i] = new Genome();
+      for (int j = 0; j < numTriangles; j++) genomes[i].add(randomTriangle(rand, width, height));
+    }
+    return genomes;
+  }
+
+  private static Genome copy(Genome genome)
+  {
+    Genome copy = new Genome();
+    for (float[] triangle : genome.getTriangles()) copy.add(triangle.clone());
+    return copy;
+  }
+
+  private static float[] randomTriangle(Random rand, int width, int height)
+  {
+    float[] triangle = new float[GENES_PER_TRIANGLE];
+    for (int vertex = 0; vertex < 3; vertex++)
+    {
+      // Reaches a little past the edges so that clipping is exercised too
+      triangle[vertex * 2] = rand.nextFloat() * width * 1.2f - width * 0.1f;
+      triangle[vertex * 2 + 1] = rand.nextFloat() * height * 1.2f - height * 0.1f;
+    }
+    triangle[6] = rand.nextInt(256);
+    triangle[7] = rand.nextInt(256);
+    triangle[8] = rand.nextInt(256);
+    triangle[9] = 0.05f + rand.nextFloat() * 0.8f;
+    return triangle;
+  }
+
+  private static void mutate(Random rand, Genome genome, WritableImage target)
+  {
+    mutate(rand, genome, (int)target.getWidth(), (int)target.getHeight());
+  }
+
+  /**
+   * Makes one of the changes the mutators make: moves a vertex, changes a color channel or
+   * the alpha, or replaces a triangle with a new one at the end. The fitness is then reset,
+   * the same as after every mutation in the engine.
+   */
+  private static void mutate(Random rand, Genome genome, int width, int height)
+  {
+    List<float[]> triangles = new ArrayList<>(genome.getTriangles());
+    float[] triangle = triangles.get(rand.nextInt(triangles.size()));
+    switch (rand.nextInt(4))
+    {
+      case 0:
+        int gene = rand.nextInt(6);
+        triangle[gene] = rand.nextFloat() * (gene % 2 == 0 ? width : height);
+        break;
+      case 1:
+        triangle[6 + rand.nextInt(3)] = rand.nextInt(256);
+        break;
+      case 2:
+        triangle[9] = 0.05f + rand.nextFloat() * 0.8f;
+        break;
+      default:
+        genome.remove(triangle);
+        genome.add(randomTriangle(rand, width, height));
+        break;
+    }
+    genome.setFitness(0.0);
+  }
+
+  private static int[] randomBounds(Random rand, int width, int height)
+  {
+    // Allowed to hang off of the image (or miss it entirely) to check the clamping
+    int x0 = rand.nextInt(width + BIN_SIZE * 2) - BIN_SIZE;
+    int y0 = rand.nextInt(height + BIN_SIZE * 2) - BIN_SIZE;
+    return new int[] { x0, y0, x0 + rand.nextInt(width / 2 + 1), y0 + rand.nextInt(height / 2 + 1) };
+  }
+
+  /**
+   * Checks whether the bounds overlap the region once both are clamped to the image, which is
+   * what TriangleBinIndex does to them.
+   */
+  private static boolean overlaps(int[] bounds, int[] region, int width, int height)
+  {
+    int x0 = Math.max(Math.max(bounds[0], region[0]), 0);
+    int y0 = Math.max(Math.max(bounds[1], region[1]), 0);
+    int x1 = Math.min(Math.min(bounds[2], region[2]), width);
+    int y1 = Math.min(Math.min(bounds[3], region[3]), height);
+    return x0 < x1 && y0 < y1;
+  }
+
+  private static void draw(TriangleRenderer renderer, Genome genome)
+  {
+    renderer.clear();
+    drawTriangles(renderer, genome);
+    renderer.markComplete();
+  }
+
+  /**
+   * Draws the genome NUM_BANDS rows at a time, with the clip set to each band in turn.
+   */
+  private static void drawBanded(TriangleRenderer renderer, Genome genome)
+  {
+    int height = renderer.getHeight();
+    int bandHeight = (height + NUM_BANDS - 1) / NUM_BANDS;
+    renderer.clearClip();
+    renderer.clear();
+    for (int y = 0; y < height; y += bandHeight)
+    {
+      renderer.setClip(0, y, renderer.getWidth(), Math.min(bandHeight, height - y));
+      drawTriangles(renderer, genome);
+    }
+    renderer.clearClip();
+    renderer.markComplete();
+  }
+
+  private static void drawTriangles(TriangleRenderer renderer, Genome genome)
+  {
+    float[] xVertices = new float[3];
+    float[] yVertices = new float[3];
+    float[] color = new float[4];
+    for (float[] triangle : genome.getTriangles())
+    {
+      for (int vertex = 0; vertex < 3; vertex++)
+      {
+        xVertices[vertex] = triangle[vertex * 2];
+        yVertices[vertex] = triangle[vertex * 2 + 1];
+      }
+      System.arraycopy(triangle, 6, color, 0, 4);
+      renderer.renderTriangle(xVertices, yVertices, color);
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package cs351.project2;
+
+import cs351.core.Engine.EvolutionEngine;
+import cs351.core.FitnessFunction;
+import cs351.core.Genome;
+import cs351.core.TriangleManager;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import java.util.Arrays;
+
+/**
+ * Fitness function based on the structural similarity index (SSIM) between the rendered
+ * genome and the target rather than on squared error. SSIM is worked out per color channel
+ * over 8x8 windows placed every 4 pixels and averaged, and the fitness is (1 + mean SSIM) / 2
+ * so that it stays on [0.0, 1.0].
+ *
+ * The target's per-channel sums and sums of squares are turned into integral images when
+ * the target is set, so each window's target mean and variance cost O(1). Per evaluation,
+ * only the genome's side is computed: one pass over the pixels adds up each channel's sum,
+ * sum of squares and product with the target into 4x4 cells, and every window is then the
+ * sum of 2x2 cells. That keeps the cost of an evaluation close to an SSE evaluation instead
+ * of growing with the window size.
+ *
+ * @author Justin
+ */
+public class SSIMFitnessCalculator implements FitnessFunction
+{
+  private static final int CELL_SIZE = 4; // pixels - windows are 2x2 cells
+  private static final int STATS_PER_CELL = 9; // sum, sum of squares and cross product for r, g, b
+  private static final double C1 = (0.01 * 255) * (0.01 * 255);
+  private static final double C2 = (0.03 * 255) * (0.03 * 255);
+  private volatile Target target; // replaced as a whole when the target changes
+  private final ThreadLocal<WorkerScratch> SCRATCH = new ThreadLocal<>();
+
+  /**
+   * Everything about the target that an evaluation reads, so that a thread can grab it once
+   * and not see a half-changed target.
+   *
+   * @author Justin
+   */
+  private static final class Target
+  {
+    private final int[] PIXELS; // packed ARGB, row-major
+    private final int WIDTH, HEIGHT;
+    private final int CELL_COLUMNS, CELL_ROWS;
+    // Integral images of the target, (WIDTH + 1) x (HEIGHT + 1), one per channel
+    private final long[][] SUMS;
+    private final long[][] SQUARE_SUMS;
+
+    private Target(int[] pixels, int width, int height, long[][] sums, long[][] squareSums)
+    {
+      PIXELS = pixels;
+      WIDTH = width;
+      HEIGHT = height;
+      CELL_COLUMNS = (width + CELL_SIZE - 1) / CELL_SIZE;
+      CELL_ROWS = (height + CELL_SIZE - 1) / CELL_SIZE;
+      SUMS = sums;
+      SQUARE_SUMS = squareSums;
+    }
+  }
+
+  /**
+   * Renderer and buffers owned by a single thread, made for one target and replaced only
+   * when the target changes.
+   *
+   * @author Justin
+   */
+  private static final class WorkerScratch
+  {
+    private final Target TARGET;
+    private final TriangleRenderer RENDERER;
+    private final TriangleManager MANAGER = new TriangleManager();
+    private final int[] CELL_STATS;
+    private final float[] X_COORDINATES = new float[3];
+    private final float[] Y_COORDINATES = new float[3];
+    private final float[] COLOR = new float[4];
+
+    private WorkerScratch(Target target)
+    {
+      TARGET = target;
+      RENDERER = new TriangleRenderer(target.WIDTH, target.HEIGHT, TriangleRenderer.RenderMode.FIXED_POINT);
+      RENDERER.setSpanCaching(true);
+      CELL_STATS = new int[target.CELL_COLUMNS * target.CELL_ROWS * STATS_PER_CELL];
+    }
+  }
+
+  /**
+   * Sets the image that the fitness function compares the genomes to
+   * when calculating their fitness. The image is decoded once and the
+   * target's integral images are built here.
+   *
+   * @param image reference to a valid target image
+   */
+  @Override
+  public void setTargetImage(Image image)
+  {
+    int width = (int)image.getWidth();
+    int height = (int)image.getHeight();
+    int[] pixels = new int[width * height];
+    image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+    setTargetPixels(pixels, width, height);
+  }
+
+  /**
+   * Takes two Genomes and compares them based on their fitness.
+   *
+   * @param first  first genome
+   * @param second second genome
+   * @return the better genome
+   */
+  @Override
+  public Genome compare(Genome first, Genome second)
+  {
+    return first.getFitness() > second.getFitness() ? first : second;
+  }
+
+  /**
+   * Takes the given genome, renders it and outputs (1 + mean SSIM) / 2 between the
+   * render and the target.
+   *
+   * @param engine EvolutionEngine reference for callbacks
+   * @param genome genome to generate a fitness for
+   * @return normalized fitness for the given genome
+   */
+  @Override
+  public double generateFitness(EvolutionEngine engine, Genome genome)
+  {
+    Target current = target;
+    WorkerScratch scratch = SCRATCH.get();
+    if (scratch == null || scratch.TARGET != current)
+    {
+      scratch = new WorkerScratch(current);
+      SCRATCH.set(scratch);
+    }
+
+    TriangleRenderer renderer = scratch.RENDERER;
+    TriangleManager manager = scratch.MANAGER;
+    renderer.clear();
+    for (float[] triangle : genome.getTriangles())
+    {
+      manager.setTriangleData(triangle);
+      renderer.renderTriangle(manager.getXCoordinates(scratch.X_COORDINATES),
+                              manager.getYCoordinates(scratch.Y_COORDINATES), manager.getColor(scratch.COLOR));
+    }
+    renderer.markComplete();
+
+    return (1.0 + meanSSIM(current, renderer.getPixels(), scratch.CELL_STATS)) / 2.0;
+  }
+
+  /**
+   * Returns the maximum fitness for a Genome as a non-normalized integer.
+   *
+   * @return maximum fitness for any genome as used by this fitness function
+   */
+  @Override
+  @Deprecated
+  public int getMaxFitness()
+  {
+    return 1;
+  }
+
+  /**
+   * Sets the target from packed ARGB pixels and builds its integral images.
+   */
+  private void setTargetPixels(int[] pixels, int width, int height)
+  {
+    long[][] sums = new long[3][(width + 1) * (height + 1)];
+    long[][] squareSums = new long[3][(width + 1) * (height + 1)];
+    int stride = width + 1;
+    for (int y = 0; y < height; y++)
+    {
+      long[] rowSums = new long[3];
+      long[] rowSquareSums = new long[3];
+      for (int x = 0; x < width; x++)
+      {
+        int color = pixels[y * width + x];
+        int index = (y + 1) * stride + x + 1;
+        for (int channel = 0; channel < 3; channel++)
+        {
+          int value = (color >> (16 - 8 * channel)) & 0xFF;
+          rowSums[channel] += value;
+          rowSquareSums[channel] += value * value;
+          sums[channel][index] = sums[channel][index - stride] + rowSums[channel];
+          squareSums[channel][index] = squareSums[channel][index - stride] + rowSquareSums[channel];
+        }
+      }
+    }
+
+    target = new Target(pixels, width, height, sums, squareSums);
+  }
+
+  /**
+   * Works out the SSIM of every window and channel and averages them.
+   *
+   * @param target target to compare against
+   * @param pixels rendered genome (packed ARGB, same size as the target)
+   * @param cellStats scratch array with STATS_PER_CELL ints per cell
+   * @return mean SSIM on the range of [-1.0, 1.0]
+   */
+  private static double meanSSIM(Target target, int[] pixels, int[] cellStats)
+  {
+    accumulateCells(target, pixels, cellStats);
+    int cellColumns = target.CELL_COLUMNS;
+    int cellRows = target.CELL_ROWS;
+    int targetWidth = target.WIDTH;
+    int targetHeight = target.HEIGHT;
+
+    // Windows are 2x2 cells placed at every cell, unless the image is only one cell across
+    int windowCells = 2;
+    int windowColumns = Math.max(cellColumns - 1, 1);
+    int windowRows = Math.max(cellRows - 1, 1);
+    int stride = targetWidth + 1;
+    double total = 0.0;
+    for (int windowRow = 0; windowRow < windowRows; windowRow++)
+    {
+      int cellY1 = Math.min(windowRow + windowCells, cellRows);
+      int y0 = windowRow * CELL_SIZE;
+      int y1 = Math.min(cellY1 * CELL_SIZE, targetHeight);
+      for (int windowColumn = 0; windowColumn < windowColumns; windowColumn++)
+      {
+        int cellX1 = Math.min(windowColumn + windowCells, cellColumns);
+        int x0 = windowColumn * CELL_SIZE;
+        int x1 = Math.min(cellX1 * CELL_SIZE, targetWidth);
+        double numPixels = (x1 - x0) * (y1 - y0);
+        for (int channel = 0; channel < 3; channel++)
+        {
+          // Genome side, from the cells
+          long genomeSum = 0, genomeSquareSum = 0, crossSum = 0;
+          for (int cellY = windowRow; cellY < cellY1; cellY++)
+          {
+            for (int cellX = windowColumn; cellX < cellX1; cellX++)
+            {
+              int offset = (cellY * cellColumns + cellX) * STATS_PER_CELL + channel * 3;
+              genomeSum += cellStats[offset];
+              genomeSquareSum += cellStats[offset + 1];
+              crossSum += cellStats[offset + 2];
+            }
+          }
+          // Target side, from the integral images
+          long[] sums = target.SUMS[channel];
+          long[] squareSums = target.SQUARE_SUMS[channel];
+          long targetSum = sums[y1 * stride + x1] - sums[y0 * stride + x1] - sums[y1 * stride + x0] + sums[y0 * stride + x0];
+          long targetSquareSum = squareSums[y1 * stride + x1] - squareSums[y0 * stride + x1] -
+                                 squareSums[y1 * stride + x0] + squareSums[y0 * stride + x0];
+
+          double targetMean = targetSum / numPixels;
+          double genomeMean = genomeSum / numPixels;
+          double targetVariance = targetSquareSum / numPixels - targetMean * targetMean;
+          double genomeVariance = genomeSquareSum / numPixels - genomeMean * genomeMean;
+          double covariance = crossSum / numPixels - targetMean * genomeMean;
+          total += ((2 * targetMean * genomeMean + C1) * (2 * covariance + C2)) /
+                   ((targetMean * targetMean + genomeMean * genomeMean + C1) * (targetVariance + genomeVariance + C2));
+        }
+      }
+    }
+    return total / (windowColumns * windowRows * 3);
+  }
+
+  /**
+   * Adds up, for every CELL_SIZE x CELL_SIZE cell and color channel, the genome's sum, its
+   * sum of squares and the sum of its product with the target. A cell holds at most 16
+   * pixels, so none of these can overflow an int.
+   */
+  private static void accumulateCells(Target target, int[] pixels, int[] cellStats)
+  {
+    int[] targetPixels = target.PIXELS;
+    int targetWidth = target.WIDTH;
+    int targetHeight = target.HEIGHT;
+    int cellColumns = target.CELL_COLUMNS;
+    Arrays.fill(cellStats, 0);
+    for (int y = 0; y < targetHeight; y++)
+    {
+      int offset = (y / CELL_SIZE) * cellColumns * STATS_PER_CELL;
+      for (int x0 = 0; x0 < targetWidth; x0 += CELL_SIZE, offset += STATS_PER_CELL)
+      {
+        int red = 0, redSquares = 0, redCross = 0;
+        int green = 0, greenSquares = 0, greenCross = 0;
+        int blue = 0, blueSquares = 0, blueCross = 0;
+        int end = y * targetWidth + Math.min(x0 + CELL_SIZE, targetWidth);
+        for (int i = y * targetWidth + x0; i < end; i++)
+        {
+          int genomeColor = pixels[i];
+          int targetColor = targetPixels[i];
+          int value = (genomeColor >> 16) & 0xFF;
+          red += value;
+          redSquares += value * value;
+          redCross += value * ((targetColor >> 16) & 0xFF);
+          value = (genomeColor >> 8) & 0xFF;
+          green += value;
+          greenSquares += value * value;
+          greenCross += value * ((targetColor >> 8) & 0xFF);
+          value = genomeColor & 0xFF;
+          blue += value;
+          blueSquares += value * value;
+          blueCross += value * (targetColor & 0xFF);
+        }
+        cellStats[offset] += red;
+        cellStats[offset + 1] += redSquares;
+        cellStats[offset + 2] += redCross;
+        cellStats[offset + 3] += green;
+        cellStats[offset + 4] += greenSquares;
+        cellStats[offset + 5] += greenCross;
+        cellStats[offset + 6] += blue;
+        cellStats[offset + 7] += blueSquares;
+        cellStats[offset + 8] += blueCross;
+      }
+    }
+  }
+}
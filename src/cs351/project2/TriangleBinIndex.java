@@ -0,0 +1,216 @@
+package cs351.project2;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over an image that keeps, for each square bin, the indices of the triangles
+ * whose bounds overlap it. Finding the triangles that touch a region then only looks at
+ * the bins under the region instead of every triangle in the genome.
+ *
+ * Each triangle's bounds are set with set(index, ...), which only moves the index between
+ * the bins that changed, so keeping the grid up to date as triangles change costs about the
+ * same as the number of bins they cover. Bins keep their indices sorted, and query returns
+ * them in increasing order - the same order the triangles are drawn in.
+ *
+ * This is not thread safe.
+ *
+ * @author Justin
+ */
+final class TriangleBinIndex
+{
+  private static final int INITIAL_BIN_CAPACITY = 8;
+  private final int BIN_SIZE;
+  private final int WIDTH, HEIGHT;
+  private final int BIN_COLUMNS, BIN_ROWS;
+  private final int[][] BINS; // row-major, sorted triangle indices
+  private final int[] BIN_COUNTS;
+  // Per triangle: x0, y0, x1, y1 in pixels (clamped to the image, empty if off of it)
+  private int[] bounds = new int[0];
+  private int numTriangles = 0;
+  // Query scratch - a triangle is already in the results if its mark equals queryStamp
+  private int[] marks = new int[0];
+  private int queryStamp = 0;
+  private int[] results = new int[0];
+
+  /**
+   * Creates an empty index for an image of the given size.
+   * @param width width (in pixels)
+   * @param height height (in pixels)
+   * @param binSize width and height of each bin (in pixels)
+   */
+  TriangleBinIndex(int width, int height, int binSize)
+  {
+    BIN_SIZE = binSize;
+    WIDTH = width;
+    HEIGHT = height;
+    BIN_COLUMNS = (width + binSize - 1) / binSize;
+    BIN_ROWS = (height + binSize - 1) / binSize;
+    BINS = new int[BIN_COLUMNS * BIN_ROWS][INITIAL_BIN_CAPACITY];
+    BIN_COUNTS = new int[BINS.length];
+  }
+
+  /**
+   * Removes every triangle and makes room for the given number of them. Every triangle
+   * starts out with empty bounds.
+   * @param numTriangles number of triangles in the genome
+   */
+  void clear(int numTriangles)
+  {
+    this.numTriangles = numTriangles;
+    Arrays.fill(BIN_COUNTS, 0);
+    if (bounds.length != numTriangles * 4) bounds = new int[numTriangles * 4];
+    else Arrays.fill(bounds, 0);
+    if (marks.length != numTriangles)
+    {
+      marks = new int[numTriangles];
+      queryStamp = 0;
+    }
+  }
+
+  /**
+   * Sets the pixels a triangle can touch to [x0, x1) x [y0, y1) and moves it into the bins
+   * that overlap them. Setting triangles in increasing order of index after clear() only
+   * ever appends to the bins.
+   * @param index index of the triangle in its genome
+   */
+  void set(int index, int x0, int y0, int x1, int y1)
+  {
+    x0 = Math.max(x0, 0);
+    y0 = Math.max(y0, 0);
+    x1 = Math.min(x1, WIDTH);
+    y1 = Math.min(y1, HEIGHT);
+    if (x0 >= x1 || y0 >= y1) x0 = y0 = x1 = y1 = 0;
+
+    int offset = index * 4;
+    int oldColumn0 = bounds[offset] / BIN_SIZE, oldRow0 = bounds[offset + 1] / BIN_SIZE;
+    int oldColumn1 = binEnd(bounds[offset + 2]), oldRow1 = binEnd(bounds[offset + 3]);
+    int column0 = x0 / BIN_SIZE, row0 = y0 / BIN_SIZE;
+    int column1 = binEnd(x1), row1 = binEnd(y1);
+    bounds[offset] = x0;
+    bounds[offset + 1] = y0;
+    bounds[offset + 2] = x1;
+    bounds[offset + 3] = y1;
+
+    for (int row = oldRow0; row < oldRow1; row++)
+    {
+      for (int column = oldColumn0; column < oldColumn1; column++)
+      {
+        if (column < column0 || column >= column1 || row < row0 || row >= row1) remove(row * BIN_COLUMNS + column, index);
+      }
+    }
+    for (int row = row0; row < row1; row++)
+    {
+      for (int column = column0; column < column1; column++)
+      {
+        if (column < oldColumn0 || column >= oldColumn1 || row < oldRow0 || row >= oldRow1) insert(row * BIN_COLUMNS + column, index);
+      }
+    }
+  }
+
+  /**
+   * Finds the triangles with an index of at least minIndex whose bounds overlap
+   * [x0, x1) x [y0, y1). The indices are put in getResults() in increasing order.
+   * @return number of triangles found
+   */
+  int query(int x0, int y0, int x1, int y1, int minIndex)
+  {
+    x0 = Math.max(x0, 0);
+    y0 = Math.max(y0, 0);
+    x1 = Math.min(x1, WIDTH);
+    y1 = Math.min(y1, HEIGHT);
+    if (x0 >= x1 || y0 >= y1) return 0;
+    if (++queryStamp == 0)
+    {
+      Arrays.fill(marks, 0);
+      queryStamp = 1;
+    }
+
+    int count = 0;
+    for (int row = y0 / BIN_SIZE; row < binEnd(y1); row++)
+    {
+      for (int column = x0 / BIN_SIZE; column < binEnd(x1); column++)
+      {
+        int bin = row * BIN_COLUMNS + column;
+        int[] indices = BINS[bin];
+        for (int i = firstAtLeast(bin, minIndex); i < BIN_COUNTS[bin]; i++)
+        {
+          int index = indices[i];
+          if (marks[index] == queryStamp) continue;
+          marks[index] = queryStamp;
+          int offset = index * 4;
+          if (bounds[offset] < x1 && bounds[offset + 2] > x0 && bounds[offset + 1] < y1 && bounds[offset + 3] > y0)
+          {
+            if (count == results.length) results = Arrays.copyOf(results, Math.max(count * 2, INITIAL_BIN_CAPACITY));
+            results[count++] = index;
+          }
+        }
+      }
+    }
+    // Each bin is sorted, but a region that spans several bins needs them merged
+    Arrays.sort(results, 0, count);
+    return count;
+  }
+
+  /**
+   * Gets the results of the last query. Only the first (return value of query) entries
+   * are valid, and they are overwritten by the next query.
+   * @return triangle indices in increasing order
+   */
+  int[] getResults()
+  {
+    return results;
+  }
+
+  /**
+   * Gets the number of triangles the index was cleared for.
+   * @return number of triangles
+   */
+  int size()
+  {
+    return numTriangles;
+  }
+
+  /**
+   * Gets the approximate number of bytes an index holding the given number of triangles
+   * uses, assuming each triangle covers a handful of bins.
+   * @param numTriangles number of triangles
+   * @return memory usage in bytes
+   */
+  static long estimateMemoryUsage(int numTriangles)
+  {
+    return 4L * numTriangles * (4 + 1 + 4);
+  }
+
+  private int binEnd(int pixelEnd)
+  {
+    return (pixelEnd + BIN_SIZE - 1) / BIN_SIZE;
+  }
+
+  private int firstAtLeast(int bin, int minIndex)
+  {
+    if (minIndex <= 0) return 0;
+    int position = Arrays.binarySearch(BINS[bin], 0, BIN_COUNTS[bin], minIndex);
+    return position >= 0 ? position : -position - 1;
+  }
+
+  private void insert(int bin, int index)
+  {
+    int count = BIN_COUNTS[bin];
+    int[] indices = BINS[bin];
+    int position = count == 0 || indices[count - 1] < index ? count : -Arrays.binarySearch(indices, 0, count, index) - 1;
+    if (count == indices.length) indices = BINS[bin] = Arrays.copyOf(indices, count * 2);
+    System.arraycopy(indices, position, indices, position + 1, count - position);
+    indices[position] = index;
+    BIN_COUNTS[bin] = count + 1;
+  }
+
+  private void remove(int bin, int index)
+  {
+    int count = BIN_COUNTS[bin];
+    int[] indices = BINS[bin];
+    int position = Arrays.binarySearch(indices, 0, count, index);
+    if (position < 0) return;
+    System.arraycopy(indices, position + 1, indices, position, count - position - 1);
+    BIN_COUNTS[bin] = count - 1;
+  }
+}
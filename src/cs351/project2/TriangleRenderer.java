@@ -1,46 +1,267 @@
 package cs351.project2;
 
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.VolatileImage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Draws triangles to a buffered image. This is not thread safe.
  *
+ * Three render modes are supported. JAVA2D goes through the image's Graphics2D
+ * context with antialiasing enabled, while SCANLINE fills each triangle row by
+ * row directly into the image's backing int[] and performs its own source-over
+ * blending. SCANLINE does not allocate while rendering and is meant to be used
+ * by a single thread per renderer. FIXED_POINT covers the same pixels as SCANLINE,
+ * but finds them with integer math and blends with 8-bit alpha through a precomputed
+ * multiply table, so its output is bit-for-bit the same on every JVM and machine.
+ *
+ * How edges are antialiased is set separately with setQuality (see RenderQuality). NONE
+ * only draws the pixels whose centers are inside, the supersampled tiers count how many of
+ * 2x2 or 4x4 sample points per pixel are inside, and EXACT works out how much of each pixel's
+ * area is inside. The coverage is rounded to 8 bits and scales the triangle's alpha. JAVA2D
+ * has no control over how many samples it takes, so it only tells NONE (antialiasing off)
+ * apart from the rest (antialiasing on).
+ *
+ * Before anything is drawn, renderTriangle culls triangles that can't change any pixel:
+ * ones with zero area, ones entirely outside the image (or the clip) and ones too transparent
+ * to change a color channel by even one shade. How many were culled for each reason is
+ * counted across all renderers (see getCullCount).
+ *
+ * SCANLINE and FIXED_POINT renderers can also keep the rows each triangle covered in a
+ * TriangleSpanCache keyed by its vertices (see setSpanCaching). Drawing a triangle whose
+ * vertices were drawn before, whatever its color, then skips edge setup and coverage and
+ * only blends. Since coverage doesn't depend on the clip, cached triangles are always
+ * worked out over the whole image and clipped as they are blended.
+ *
+ * All modes respect the clip set by setClip, which allows part of an image to be
+ * recomposited without touching the rest of it. SCANLINE and FIXED_POINT draw exactly
+ * the same pixels with or without a clip. JAVA2D can very rarely come out one shade
+ * different in a color channel depending on the clip, so evaluations that draw in bands
+ * or regions are only exact in SCANLINE and FIXED_POINT modes.
+ *
  * @author Justin
  */
 public class TriangleRenderer
 {
+  private static final int OPAQUE_BLACK = 0xFF000000;
+  // MULTIPLY[(a << 8) | c] = round(a * c / 255) for 8-bit a and c
+  private static final byte[] MULTIPLY = new byte[256 * 256];
+  // Blending with less alpha than this moves a channel by less than half a shade, which rounds away
+  private static final float MIN_VISIBLE_ALPHA = 1.0f / 510.0f;
+  private static final LongAdder[] CULL_COUNTS = new LongAdder[CullReason.values().length];
+  // COVERAGE_LEVELS[n][c] = c out of n * n samples as an 8-bit coverage, for n = 2 and 4
+  private static final int[][] COVERAGE_LEVELS = new int[5][];
+  private final RenderMode MODE;
   private int width, height;
   private int[] xVertBuffer, yVertBuffer;
   private final BufferedImage IMAGE;
+  private final int[] PIXELS; // backing array of IMAGE
   //private final VolatileImage IMAGE;
   private final Graphics2D CONTEXT;
   private boolean isComplete = true;
   private BufferedImage snapshot;
+  private float spanLeft, spanRight; // scratch values for the scanline rasterizer
+  private RenderQuality quality;
+  private final int[] COVERAGE_ROW; // per-pixel coverage of the current row, 0 to 255
+  // Scratch polygons for EXACT coverage (a triangle clipped to a row has at most 5 vertices,
+  // and clipping that to the left of a column adds at most 1 more)
+  private final double[] TRIANGLE_X = new double[3], TRIANGLE_Y = new double[3];
+  private final double[] BAND_POLYGON_X = new double[8], BAND_POLYGON_Y = new double[8];
+  private final double[] LEFT_POLYGON_X = new double[8], LEFT_POLYGON_Y = new double[8];
+  // Color of the triangle being drawn with coverage, set up by setCoverageColor
+  private int coverRed, coverGreen, coverBlue, coverAlpha;
+  private float coverAlphaFloat;
+  // Color of the triangle being drawn without coverage, set up by setSpanColor - the float
+  // terms are for SCANLINE and the int terms for FIXED_POINT
+  private float spanRedFloat, spanGreenFloat, spanBlueFloat, spanInvAlpha;
+  private int spanRed, spanGreen, spanBlue, spanInvAlphaRow;
+  private TriangleSpanCache spanCache; // null unless span caching is on
+  private boolean recording = false; // true while rows are going to spanCache instead of PIXELS
+  private int[] spanOut; // set while getCoveredSpans is collecting spans instead of drawing them
+  private int numSpansOut;
+  private int clipX0, clipY0, clipX1, clipY1; // [x0, x1) x [y0, y1)
+
+  static
+  {
+    for (int i = 0; i < CULL_COUNTS.length; i++) CULL_COUNTS[i] = new LongAdder();
+    for (int a = 0; a < 256; a++)
+    {
+      for (int c = 0; c < 256; c++) MULTIPLY[(a << 8) | c] = (byte)((a * c + 127) / 255);
+    }
+    for (int samplesPerAxis = 2; samplesPerAxis <= 4; samplesPerAxis += 2)
+    {
+      int numSamples = samplesPerAxis * samplesPerAxis;
+      COVERAGE_LEVELS[samplesPerAxis] = new int[numSamples + 1];
+      for (int c = 0; c <= numSamples; c++)
+      {
+        COVERAGE_LEVELS[samplesPerAxis][c] = (c * 255 + numSamples / 2) / numSamples;
+      }
+    }
+  }
 
   /**
-   * Creates a new TriangleRenderer with the given width and height (in pixels).
+   * Enum representing the different ways a renderer can draw its triangles.
+   *
+   * @author Justin
+   */
+  public enum RenderMode
+  {
+    JAVA2D,
+    SCANLINE,
+    FIXED_POINT
+  }
+
+  /**
+   * Enum representing the reasons renderTriangle can skip a triangle without drawing it.
+   *
+   * @author Justin
+   */
+  public enum CullReason
+  {
+    DEGENERATE, // zero area
+    OFFSCREEN, // entirely outside the image or the clip
+    TRANSPARENT // alpha too low to change any pixel
+  }
+
+  /**
+   * Enum representing how much work a renderer puts into antialiasing triangle edges,
+   * from cheapest to most expensive.
+   *
+   * @author Justin
+   */
+  public enum RenderQuality
+  {
+    NONE(1),
+    SUPERSAMPLE_2X2(2),
+    SUPERSAMPLE_4X4(4),
+    EXACT(0);
+
+    private final int SAMPLES_PER_AXIS; // 0 for EXACT
+
+    RenderQuality(int samplesPerAxis)
+    {
+      SAMPLES_PER_AXIS = samplesPerAxis;
+    }
+  }
+
+  /**
+   * Creates a new TriangleRenderer with the given width and height (in pixels) that
+   * renders through Java2D.
    * @param width width (in pixels)
    * @param height height (in pixels)
    */
   public TriangleRenderer(int width, int height)
   {
+    this(width, height, RenderMode.JAVA2D);
+  }
+
+  /**
+   * Creates a new TriangleRenderer with the given width and height (in pixels). JAVA2D
+   * renderers start out antialiased (RenderQuality.EXACT) and the others start out with
+   * RenderQuality.NONE.
+   * @param width width (in pixels)
+   * @param height height (in pixels)
+   * @param mode how triangles should be drawn
+   */
+  public TriangleRenderer(int width, int height, RenderMode mode)
+  {
+    MODE = mode;
+    COVERAGE_ROW = new int[width];
     this.width = width;
     this.height = height;
     xVertBuffer = new int[3];
     yVertBuffer = new int[3];
     IMAGE = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    PIXELS = ((DataBufferInt)IMAGE.getRaster().getDataBuffer()).getData();
     //IMAGE = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().createCompatibleVolatileImage(width, height);
     CONTEXT = (Graphics2D)IMAGE.getGraphics();
-    CONTEXT.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
     CONTEXT.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_SPEED);
+    setQuality(mode == RenderMode.JAVA2D ? RenderQuality.EXACT : RenderQuality.NONE);
+    clearClip();
     clear();
   }
 
+  /**
+   * Sets how triangle edges are antialiased by future calls to renderTriangle.
+   * @param quality quality tier to draw with
+   */
+  public void setQuality(RenderQuality quality)
+  {
+    if (spanCache != null && quality != this.quality) spanCache.clear();
+    this.quality = quality;
+    CONTEXT.setRenderingHint(RenderingHints.KEY_ANTIALIASING, quality == RenderQuality.NONE ?
+                                                              RenderingHints.VALUE_ANTIALIAS_OFF :
+                                                              RenderingHints.VALUE_ANTIALIAS_ON);
+  }
+
+  /**
+   * Gets the quality tier triangles are currently drawn with.
+   * @return render quality
+   */
+  public RenderQuality getQuality()
+  {
+    return quality;
+  }
+
+  /**
+   * Turns keeping the rows each triangle covers (see TriangleSpanCache) on or off. While on,
+   * triangles whose vertices have been drawn recently are only blended, which helps most when
+   * the same triangles are drawn over and over with small changes, like when evaluating
+   * mutated copies of a genome. The output is exactly the same either way. JAVA2D renderers
+   * ignore this. Off by default.
+   * @param enabled true to cache triangle rows
+   */
+  public void setSpanCaching(boolean enabled)
+  {
+    if (!enabled) spanCache = null;
+    else if (spanCache == null && MODE != RenderMode.JAVA2D) spanCache = new TriangleSpanCache(width, height);
+  }
+
+  /**
+   * Checks whether this renderer keeps the rows each triangle covers (see setSpanCaching).
+   * @return true if span caching is on
+   */
+  public boolean isSpanCaching()
+  {
+    return spanCache != null;
+  }
+
+  /**
+   * Restricts all future calls to renderTriangle and clear to the given rectangle. Pixels
+   * outside of it are left untouched until clearClip() is called.
+   * @param x left edge of the clip (in pixels)
+   * @param y top edge of the clip (in pixels)
+   * @param clipWidth width of the clip (in pixels)
+   * @param clipHeight height of the clip (in pixels)
+   */
+  public void setClip(int x, int y, int clipWidth, int clipHeight)
+  {
+    clipX0 = Math.max(x, 0);
+    clipY0 = Math.max(y, 0);
+    clipX1 = Math.min(x + clipWidth, width);
+    clipY1 = Math.min(y + clipHeight, height);
+    CONTEXT.setClip(clipX0, clipY0, clipX1 - clipX0, clipY1 - clipY0);
+  }
+
+  /**
+   * Removes any clip set by setClip so that the whole image can be drawn to again.
+   */
+  public void clearClip()
+  {
+    clipX0 = 0;
+    clipY0 = 0;
+    clipX1 = width;
+    clipY1 = height;
+    CONTEXT.setClip(null);
+  }
+
   /**
    * Expects 3 different vertices between the two vertex arrays, and a color of the form
    * {red, green, blue, alpha} where the alpha component is normalized.
@@ -59,16 +280,104 @@ public class TriangleRenderer
     yVertBuffer[1] = (int)yVertices[1];
     yVertBuffer[2] = (int)yVertices[2];
 
+    CullReason reason = cull(color[3]);
+    if (reason != null)
+    {
+      CULL_COUNTS[reason.ordinal()].increment();
+      return;
+    }
+    if (MODE != RenderMode.JAVA2D)
+    {
+      boolean visible = quality == RenderQuality.NONE ? setSpanColor(color) : setCoverageColor(color);
+      if (!visible) return;
+      if (spanCache != null) fillTriangleCached();
+      else fillTriangleRows();
+      return;
+    }
     CONTEXT.setColor(new Color(packData(color, false), true));
     CONTEXT.fillPolygon(xVertBuffer, yVertBuffer, 3);
   }
 
+  /**
+   * Finds the pixels inside the current clip that renderTriangle would cover with
+   * RenderQuality.NONE (the ones whose centers are inside the triangle) without drawing
+   * anything. SCANLINE and FIXED_POINT cover exactly these pixels; JAVA2D comes close.
+   * @param xVertices array of in-order x-values
+   * @param yVertices array of in-order y-values
+   * @param spans array to fill with (y, x0, x1) for each covered run of pixels [x0, x1) - one
+   *              run per row, so 3 * getHeight() ints are always enough
+   * @return number of runs found
+   */
+  public int getCoveredSpans(float[] xVertices, float[] yVertices, int[] spans)
+  {
+    for (int i = 0; i < 3; i++)
+    {
+      xVertBuffer[i] = (int)xVertices[i];
+      yVertBuffer[i] = (int)yVertices[i];
+    }
+    spanOut = spans;
+    numSpansOut = 0;
+    fillTriangleFixed();
+    spanOut = null;
+    return numSpansOut;
+  }
+
+  /**
+   * Gets the number of triangles that renderTriangle skipped for the given reason, added
+   * up over every renderer since the program started (or since resetCullCounts).
+   * @param reason reason the triangles were culled
+   * @return number of culled triangles
+   */
+  public static long getCullCount(CullReason reason)
+  {
+    return CULL_COUNTS[reason.ordinal()].sum();
+  }
+
+  /**
+   * Sets every cull count back to 0.
+   */
+  public static void resetCullCounts()
+  {
+    for (LongAdder count : CULL_COUNTS) count.reset();
+  }
+
+  /**
+   * Checks whether the triangle in xVertBuffer/yVertBuffer can be skipped. Culled triangles
+   * would not have changed any pixel in any render mode or quality.
+   * @param alpha normalized alpha of the triangle
+   * @return reason to skip the triangle, or null if it has to be drawn
+   */
+  private CullReason cull(float alpha)
+  {
+    if (!(alpha >= MIN_VISIBLE_ALPHA)) return CullReason.TRANSPARENT;
+    int x1 = xVertBuffer[0], y1 = yVertBuffer[0];
+    int x2 = xVertBuffer[1], y2 = yVertBuffer[1];
+    int x3 = xVertBuffer[2], y3 = yVertBuffer[2];
+    if ((long)(x2 - x1) * (y3 - y1) == (long)(x3 - x1) * (y2 - y1)) return CullReason.DEGENERATE;
+    // Every mode only touches pixels inside the triangle's bounding box [min, max)
+    if (Math.max(x1, Math.max(x2, x3)) <= clipX0 || Math.min(x1, Math.min(x2, x3)) >= clipX1 ||
+        Math.max(y1, Math.max(y2, y3)) <= clipY0 || Math.min(y1, Math.min(y2, y3)) >= clipY1)
+    {
+      return CullReason.OFFSCREEN;
+    }
+    return null;
+  }
+
   /**
    * Clears all pixel data that had been previously written.
    */
   public void clear()
   {
     isComplete = false;
+    if (MODE != RenderMode.JAVA2D)
+    {
+      if (clipX0 == 0 && clipY0 == 0 && clipX1 == width && clipY1 == height) Arrays.fill(PIXELS, OPAQUE_BLACK);
+      else
+      {
+        for (int y = clipY0; y < clipY1; y++) Arrays.fill(PIXELS, y * width + clipX0, y * width + clipX1, OPAQUE_BLACK);
+      }
+      return;
+    }
     CONTEXT.setBackground(Color.BLACK);
     CONTEXT.setColor(Color.BLACK);
     CONTEXT.clearRect(0, 0, width, height);
@@ -85,6 +394,15 @@ public class TriangleRenderer
     //snapshot = IMAGE.getSnapshot();
   }
 
+  /**
+   * Gets the mode this renderer was created with.
+   * @return render mode
+   */
+  public RenderMode getRenderMode()
+  {
+    return MODE;
+  }
+
   /**
    * Gets the width of the BufferedImage in pixels.
    * @return BufferedImage width in pixels
@@ -111,11 +429,23 @@ public class TriangleRenderer
    */
   public int getPackedARGB(int x, int y)
   {
-    return IMAGE.getRGB(x, y);
+    return PIXELS[y * width + x];
     //if (!isComplete) throw new IllegalStateException("markComplete() not called");
     //return snapshot.getRGB(x, y);
   }
 
+  /**
+   * Returns the array backing the BufferedImage. Pixels are packed ARGB and stored
+   * row-major, so (x, y) is found at index y * getWidth() + x. The array is
+   * written to directly by renderTriangle and clear, so only read from it after
+   * calling markComplete().
+   * @return packed ARGB pixel data
+   */
+  public int[] getPixels()
+  {
+    return PIXELS;
+  }
+
   /**
    * Returns an array containing the unpacked RGBA values.
    * @param x x-coordinate into the BufferedImage
@@ -137,14 +467,564 @@ public class TriangleRenderer
   {
     javafx.scene.image.WritableImage image = new WritableImage(width, height);
     PixelWriter writer = image.getPixelWriter();
-    for (int x = 0; x < width; x++)
+    // One bulk copy instead of a setArgb call per pixel
+    writer.setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), getPixels(), 0, width);
+    return image;
+  }
+
+  /**
+   * Draws the triangle in xVertBuffer/yVertBuffer with the rasterizer for the current mode
+   * and quality. The color has to have been set up with setSpanColor or setCoverageColor.
+   */
+  private void fillTriangleRows()
+  {
+    if (quality == RenderQuality.EXACT) fillTriangleExact();
+    else if (quality != RenderQuality.NONE) fillTriangleSupersampled(quality.SAMPLES_PER_AXIS);
+    else if (MODE == RenderMode.SCANLINE) fillTriangle();
+    else fillTriangleFixed();
+  }
+
+  /**
+   * Draws the triangle in xVertBuffer/yVertBuffer from spanCache, first recording its rows
+   * over the whole image if they aren't cached yet.
+   */
+  private void fillTriangleCached()
+  {
+    int entry = spanCache.find(xVertBuffer, yVertBuffer);
+    if (entry < 0)
     {
-      for (int y = 0; y < height; y++)
+      int x0 = clipX0, y0 = clipY0, x1 = clipX1, y1 = clipY1;
+      clipX0 = 0;
+      clipY0 = 0;
+      clipX1 = width;
+      clipY1 = height;
+      recording = true;
+      spanCache.begin(xVertBuffer, yVertBuffer);
+      fillTriangleRows();
+      entry = spanCache.end();
+      recording = false;
+      clipX0 = x0;
+      clipY0 = y0;
+      clipX1 = x1;
+      clipY1 = y1;
+    }
+
+    int[] rows = spanCache.getRows();
+    byte[] coverage = spanCache.getCoverage();
+    int firstRow = spanCache.getFirstRow(entry);
+    int endRow = firstRow + spanCache.getRowCount(entry);
+    for (int row = firstRow; row < endRow; row++)
+    {
+      int offset = row * TriangleSpanCache.ROW_INTS;
+      int y = rows[offset];
+      if (y < clipY0) continue;
+      if (y >= clipY1) break;
+      int rowX0 = rows[offset + 1], fullStart = rows[offset + 2], fullEnd = rows[offset + 3];
+      int x0 = Math.max(rowX0, clipX0);
+      int x1 = Math.min(rows[offset + 4], clipX1);
+      if (x0 >= x1) continue;
+      if (quality == RenderQuality.NONE)
       {
-        writer.setArgb(x, y, getPackedARGB(x, y));
+        fillSpan(y, x0, x1);
+        continue;
       }
+      // Partial coverage is stored for [rowX0, fullStart) followed by [fullEnd, rowX1)
+      int coverageOffset = rows[offset + 5];
+      for (int x = x0; x < Math.min(fullStart, x1); x++) COVERAGE_ROW[x] = coverage[coverageOffset + x - rowX0] & 0xFF;
+      for (int x = Math.max(fullStart, x0); x < Math.min(fullEnd, x1); x++) COVERAGE_ROW[x] = 255;
+      coverageOffset += fullStart - rowX0 - fullEnd;
+      for (int x = Math.max(fullEnd, x0); x < x1; x++) COVERAGE_ROW[x] = coverage[coverageOffset + x] & 0xFF;
+      blendCoverageRow(y, x0, x1);
     }
-    return image;
+  }
+
+  /**
+   * Sets up the color for fillSpan.
+   * @param color RGBA color (alpha normalized)
+   * @return false if the triangle is fully transparent and doesn't need to be drawn
+   */
+  private boolean setSpanColor(float[] color)
+  {
+    if (MODE == RenderMode.SCANLINE)
+    {
+      float alpha = color[3];
+      if (!(alpha > 0.0f)) return false;
+      if (alpha > 1.0f) alpha = 1.0f;
+      spanInvAlpha = 1.0f - alpha;
+      // Premultiply the source once - + 0.5 so that the final cast rounds
+      spanRedFloat = (int)color[0] * alpha + 0.5f;
+      spanGreenFloat = (int)color[1] * alpha + 0.5f;
+      spanBlueFloat = (int)color[2] * alpha + 0.5f;
+      return true;
+    }
+    if (!(color[3] > 0.0f)) return false;
+    int alpha = color[3] >= 1.0f ? 255 : (int)(color[3] * 255.0f + 0.5f);
+    if (alpha == 0) return false;
+    spanInvAlphaRow = (255 - alpha) << 8;
+    int alphaRow = alpha << 8;
+    spanRed = MULTIPLY[alphaRow | clampChannel(color[0])] & 0xFF;
+    spanGreen = MULTIPLY[alphaRow | clampChannel(color[1])] & 0xFF;
+    spanBlue = MULTIPLY[alphaRow | clampChannel(color[2])] & 0xFF;
+    return true;
+  }
+
+  /**
+   * Blends the color from setSpanColor (source-over) into pixels [x0, x1) of row y, or
+   * hands the span to getCoveredSpans or spanCache instead while either is collecting. The
+   * destination is always opaque since clear() fills with opaque black. SCANLINE blends with
+   * floats and FIXED_POINT blends each channel as
+   * MULTIPLY[alpha][src] + MULTIPLY[255 - alpha][dst].
+   */
+  private void fillSpan(int y, int x0, int x1)
+  {
+    if (x0 >= x1) return;
+    if (spanOut != null)
+    {
+      spanOut[numSpansOut * 3] = y;
+      spanOut[numSpansOut * 3 + 1] = x0;
+      spanOut[numSpansOut * 3 + 2] = x1;
+      numSpansOut++;
+      return;
+    }
+    if (recording)
+    {
+      spanCache.addRow(y, x0, x0, x1, x1, null);
+      return;
+    }
+    int rowOffset = y * width;
+    if (MODE == RenderMode.SCANLINE)
+    {
+      for (int i = rowOffset + x0; i < rowOffset + x1; i++)
+      {
+        int dst = PIXELS[i];
+        int r = (int)(spanRedFloat + ((dst >> 16) & 0xFF) * spanInvAlpha);
+        int g = (int)(spanGreenFloat + ((dst >> 8) & 0xFF) * spanInvAlpha);
+        int b = (int)(spanBlueFloat + (dst & 0xFF) * spanInvAlpha);
+        PIXELS[i] = OPAQUE_BLACK | (r << 16) | (g << 8) | b;
+      }
+      return;
+    }
+    int invAlphaRow = spanInvAlphaRow;
+    for (int i = rowOffset + x0; i < rowOffset + x1; i++)
+    {
+      int dst = PIXELS[i];
+      int r = spanRed + (MULTIPLY[invAlphaRow | ((dst >> 16) & 0xFF)] & 0xFF);
+      int g = spanGreen + (MULTIPLY[invAlphaRow | ((dst >> 8) & 0xFF)] & 0xFF);
+      int b = spanBlue + (MULTIPLY[invAlphaRow | (dst & 0xFF)] & 0xFF);
+      PIXELS[i] = OPAQUE_BLACK | (r << 16) | (g << 8) | b;
+    }
+  }
+
+  /**
+   * Scanline rasterizer used by RenderMode.SCANLINE. Works off of the vertices that
+   * renderTriangle placed in xVertBuffer/yVertBuffer. A pixel is covered when its center
+   * lies inside the triangle, and each row's covered pixels are handed to fillSpan.
+   */
+  private void fillTriangle()
+  {
+    float x1 = xVertBuffer[0], y1 = yVertBuffer[0];
+    float x2 = xVertBuffer[1], y2 = yVertBuffer[1];
+    float x3 = xVertBuffer[2], y3 = yVertBuffer[2];
+
+    int rowStart = Math.max((int)Math.ceil(Math.min(y1, Math.min(y2, y3)) - 0.5f), clipY0);
+    int rowEnd = Math.min((int)Math.ceil(Math.max(y1, Math.max(y2, y3)) - 0.5f), clipY1);
+    for (int y = rowStart; y < rowEnd; y++)
+    {
+      float center = y + 0.5f;
+      spanLeft = Float.MAX_VALUE;
+      spanRight = -Float.MAX_VALUE;
+      intersectEdge(x1, y1, x2, y2, center);
+      intersectEdge(x2, y2, x3, y3, center);
+      intersectEdge(x3, y3, x1, y1, center);
+      if (spanLeft >= spanRight) continue;
+
+      int xStart = Math.max((int)Math.ceil(spanLeft - 0.5f), clipX0);
+      int xEnd = Math.min((int)Math.ceil(spanRight - 0.5f), clipX1);
+      fillSpan(y, xStart, xEnd);
+    }
+  }
+
+  /**
+   * Integer rasterizer used by RenderMode.FIXED_POINT. Covers the same pixels as fillTriangle
+   * (a pixel is covered when its center lies inside the triangle), but the edge crossings are
+   * worked out exactly as fractions instead of with floats. The alpha is rounded to 8 bits by
+   * setSpanColor.
+   */
+  private void fillTriangleFixed()
+  {
+    int x1 = xVertBuffer[0], y1 = yVertBuffer[0];
+    int x2 = xVertBuffer[1], y2 = yVertBuffer[1];
+    int x3 = xVertBuffer[2], y3 = yVertBuffer[2];
+    // Vertices are whole pixels, so the rows whose centers are inside are [minY, maxY)
+    int rowStart = Math.max(Math.min(y1, Math.min(y2, y3)), clipY0);
+    int rowEnd = Math.min(Math.max(y1, Math.max(y2, y3)), clipY1);
+    for (int y = rowStart; y < rowEnd; y++)
+    {
+      int spanStart = Integer.MAX_VALUE;
+      int spanEnd = Integer.MIN_VALUE;
+      // Each edge that crosses the row center gives the first pixel whose center is at or
+      // right of the crossing - the span is [leftmost of those, rightmost of those)
+      int first = firstPixelRightOf(x1, y1, x2, y2, y);
+      if (first != Integer.MIN_VALUE)
+      {
+        spanStart = Math.min(spanStart, first);
+        spanEnd = Math.max(spanEnd, first);
+      }
+      first = firstPixelRightOf(x2, y2, x3, y3, y);
+      if (first != Integer.MIN_VALUE)
+      {
+        spanStart = Math.min(spanStart, first);
+        spanEnd = Math.max(spanEnd, first);
+      }
+      first = firstPixelRightOf(x3, y3, x1, y1, y);
+      if (first != Integer.MIN_VALUE)
+      {
+        spanStart = Math.min(spanStart, first);
+        spanEnd = Math.max(spanEnd, first);
+      }
+      fillSpan(y, Math.max(spanStart, clipX0), Math.min(spanEnd, clipX1));
+    }
+  }
+
+  /**
+   * Finds where the given edge crosses the center of row y (y + 1/2) and returns the first
+   * pixel whose center is at or right of that point, or Integer.MIN_VALUE if the edge doesn't
+   * cross the row center. Edges are half-open in y like in intersectEdge.
+   */
+  private static int firstPixelRightOf(int xa, int ya, int xb, int yb, int y)
+  {
+    // Row centers fall strictly between whole-pixel vertices, so half-open is just [min, max)
+    if (ya == yb || y < Math.min(ya, yb) || y >= Math.max(ya, yb)) return Integer.MIN_VALUE;
+    // Crossing x = xa + (2y + 1 - 2ya)(xb - xa) / (2(yb - ya)), and the first pixel center at
+    // or right of it is ceil(x - 1/2) = ceil((2xa * d + 2n - d) / 2d) with n and d from above
+    long n = (long)(2 * y + 1 - 2 * ya) * (xb - xa);
+    long d = 2L * (yb - ya);
+    long numerator = 2L * xa * d + 2 * n - d;
+    long denominator = 2 * d;
+    if (denominator < 0)
+    {
+      numerator = -numerator;
+      denominator = -denominator;
+    }
+    return (int)-Math.floorDiv(-numerator, denominator);
+  }
+
+  /**
+   * Sets up coverRed, coverGreen, coverBlue and the alpha for blendCoverageRow.
+   * @param color RGBA color (alpha normalized)
+   * @return false if the triangle is fully transparent and doesn't need to be drawn
+   */
+  private boolean setCoverageColor(float[] color)
+  {
+    if (!(color[3] > 0.0f)) return false;
+    coverRed = clampChannel(color[0]);
+    coverGreen = clampChannel(color[1]);
+    coverBlue = clampChannel(color[2]);
+    coverAlphaFloat = Math.min(color[3], 1.0f);
+    coverAlpha = color[3] >= 1.0f ? 255 : (int)(color[3] * 255.0f + 0.5f);
+    return MODE != RenderMode.FIXED_POINT || coverAlpha > 0;
+  }
+
+  /**
+   * Supersampled rasterizer used by the SUPERSAMPLE tiers. Each pixel row is split into
+   * samplesPerAxis rows of sample points, and every sample row is filled the same way
+   * fillTriangleFixed fills a pixel row, just on a grid that is samplesPerAxis times finer.
+   * The samples that land in each pixel are counted up in COVERAGE_ROW.
+   * @param samplesPerAxis number of samples across and down each pixel
+   */
+  private void fillTriangleSupersampled(int samplesPerAxis)
+  {
+    int x1 = xVertBuffer[0] * samplesPerAxis, y1 = yVertBuffer[0] * samplesPerAxis;
+    int x2 = xVertBuffer[1] * samplesPerAxis, y2 = yVertBuffer[1] * samplesPerAxis;
+    int x3 = xVertBuffer[2] * samplesPerAxis, y3 = yVertBuffer[2] * samplesPerAxis;
+    int[] levels = COVERAGE_LEVELS[samplesPerAxis];
+    int sampleX0 = clipX0 * samplesPerAxis;
+    int sampleX1 = clipX1 * samplesPerAxis;
+    // Vertices are whole pixels, so only rows between them can have samples inside
+    int rowStart = Math.max(Math.min(yVertBuffer[0], Math.min(yVertBuffer[1], yVertBuffer[2])), clipY0);
+    int rowEnd = Math.min(Math.max(yVertBuffer[0], Math.max(yVertBuffer[1], yVertBuffer[2])), clipY1);
+    for (int y = rowStart; y < rowEnd; y++)
+    {
+      int rowMin = Integer.MAX_VALUE;
+      int rowMax = Integer.MIN_VALUE;
+      for (int sampleY = y * samplesPerAxis; sampleY < (y + 1) * samplesPerAxis; sampleY++)
+      {
+        int spanStart = Integer.MAX_VALUE;
+        int spanEnd = Integer.MIN_VALUE;
+        int first = firstPixelRightOf(x1, y1, x2, y2, sampleY);
+        if (first != Integer.MIN_VALUE)
+        {
+          spanStart = Math.min(spanStart, first);
+          spanEnd = Math.max(spanEnd, first);
+        }
+        first = firstPixelRightOf(x2, y2, x3, y3, sampleY);
+        if (first != Integer.MIN_VALUE)
+        {
+          spanStart = Math.min(spanStart, first);
+          spanEnd = Math.max(spanEnd, first);
+        }
+        first = firstPixelRightOf(x3, y3, x1, y1, sampleY);
+        if (first != Integer.MIN_VALUE)
+        {
+          spanStart = Math.min(spanStart, first);
+          spanEnd = Math.max(spanEnd, first);
+        }
+        spanStart = Math.max(spanStart, sampleX0);
+        spanEnd = Math.min(spanEnd, sampleX1);
+        if (spanStart >= spanEnd) continue;
+
+        // Add the samples in [spanStart, spanEnd) to the pixels they fall in
+        int firstPixel = spanStart / samplesPerAxis;
+        int lastPixel = (spanEnd - 1) / samplesPerAxis;
+        if (firstPixel == lastPixel) COVERAGE_ROW[firstPixel] += spanEnd - spanStart;
+        else
+        {
+          COVERAGE_ROW[firstPixel] += (firstPixel + 1) * samplesPerAxis - spanStart;
+          for (int x = firstPixel + 1; x < lastPixel; x++) COVERAGE_ROW[x] += samplesPerAxis;
+          COVERAGE_ROW[lastPixel] += spanEnd - lastPixel * samplesPerAxis;
+        }
+        rowMin = Math.min(rowMin, firstPixel);
+        rowMax = Math.max(rowMax, lastPixel + 1);
+      }
+      if (rowMin >= rowMax) continue;
+      for (int x = rowMin; x < rowMax; x++) COVERAGE_ROW[x] = levels[COVERAGE_ROW[x]];
+      blendCoverageRow(y, rowMin, rowMax);
+    }
+  }
+
+  /**
+   * Rasterizer used by RenderQuality.EXACT. Each pixel row of the triangle is cut out as a
+   * polygon, and a pixel's coverage is the area of that polygon to the left of the pixel's
+   * right edge minus the area to the left of its left edge. Vertices are whole pixels, so
+   * every corner of a row's polygon is on its top or bottom edge, and the pixels between the
+   * rightmost left corner and the leftmost right corner are fully covered.
+   */
+  private void fillTriangleExact()
+  {
+    int rowStart = Math.max(Math.min(yVertBuffer[0], Math.min(yVertBuffer[1], yVertBuffer[2])), clipY0);
+    int rowEnd = Math.min(Math.max(yVertBuffer[0], Math.max(yVertBuffer[1], yVertBuffer[2])), clipY1);
+    for (int i = 0; i < 3; i++)
+    {
+      TRIANGLE_X[i] = xVertBuffer[i];
+      TRIANGLE_Y[i] = yVertBuffer[i];
+    }
+    for (int y = rowStart; y < rowEnd; y++)
+    {
+      int numVertices = clipPolygon(TRIANGLE_X, TRIANGLE_Y, 3, false, y, false, LEFT_POLYGON_X, LEFT_POLYGON_Y);
+      numVertices = clipPolygon(LEFT_POLYGON_X, LEFT_POLYGON_Y, numVertices, false, y + 1, true,
+                                BAND_POLYGON_X, BAND_POLYGON_Y);
+      if (numVertices < 3) continue;
+      double minX = BAND_POLYGON_X[0], maxX = BAND_POLYGON_X[0];
+      for (int i = 1; i < numVertices; i++)
+      {
+        minX = Math.min(minX, BAND_POLYGON_X[i]);
+        maxX = Math.max(maxX, BAND_POLYGON_X[i]);
+      }
+      int rowMin = Math.max((int)Math.floor(minX), clipX0);
+      int rowMax = Math.min((int)Math.ceil(maxX), clipX1);
+      if (rowMin >= rowMax) continue;
+
+      // Left and right ends of the polygon along the top and bottom of the row
+      double topLeft = Double.MAX_VALUE, topRight = -Double.MAX_VALUE;
+      double bottomLeft = Double.MAX_VALUE, bottomRight = -Double.MAX_VALUE;
+      for (int i = 0; i < numVertices; i++)
+      {
+        if (BAND_POLYGON_Y[i] == y)
+        {
+          topLeft = Math.min(topLeft, BAND_POLYGON_X[i]);
+          topRight = Math.max(topRight, BAND_POLYGON_X[i]);
+        }
+        else
+        {
+          bottomLeft = Math.min(bottomLeft, BAND_POLYGON_X[i]);
+          bottomRight = Math.max(bottomRight, BAND_POLYGON_X[i]);
+        }
+      }
+      int fullStart = Math.max((int)Math.ceil(Math.max(topLeft, bottomLeft)), rowMin);
+      int fullEnd = Math.min((int)Math.floor(Math.min(topRight, bottomRight)), rowMax);
+      if (fullStart >= fullEnd) fullStart = fullEnd = rowMax;
+
+      coverPartialPixels(numVertices, rowMin, fullStart);
+      for (int x = fullStart; x < fullEnd; x++) COVERAGE_ROW[x] = 255;
+      coverPartialPixels(numVertices, fullEnd, rowMax);
+      blendCoverageRow(y, rowMin, rowMax);
+    }
+  }
+
+  /**
+   * Works out the EXACT coverage of pixels [x0, x1) of the current row into COVERAGE_ROW.
+   */
+  private void coverPartialPixels(int numVertices, int x0, int x1)
+  {
+    if (x0 >= x1) return;
+    double areaLeft = areaLeftOf(numVertices, x0);
+    for (int x = x0; x < x1; x++)
+    {
+      double nextAreaLeft = areaLeftOf(numVertices, x + 1);
+      COVERAGE_ROW[x] = (int)((nextAreaLeft - areaLeft) * 255.0 + 0.5);
+      areaLeft = nextAreaLeft;
+    }
+  }
+
+  /**
+   * Gets the area of the part of BAND_POLYGON that is left of the vertical line at x.
+   */
+  private double areaLeftOf(int numVertices, double x)
+  {
+    int numLeft = clipPolygon(BAND_POLYGON_X, BAND_POLYGON_Y, numVertices, true, x, true, LEFT_POLYGON_X, LEFT_POLYGON_Y);
+    double twiceArea = 0.0;
+    for (int i = 0, j = numLeft - 1; i < numLeft; j = i++)
+    {
+      twiceArea += LEFT_POLYGON_X[j] * LEFT_POLYGON_Y[i] - LEFT_POLYGON_X[i] * LEFT_POLYGON_Y[j];
+    }
+    return Math.abs(twiceArea) / 2.0;
+  }
+
+  /**
+   * Clips a convex polygon against a vertical (x = bound) or horizontal (y = bound) line
+   * and keeps either the part below the bound or the part above it.
+   * @return number of vertices in the clipped polygon
+   */
+  private static int clipPolygon(double[] inX, double[] inY, int numVertices, boolean vertical, double bound,
+                                 boolean keepBelow, double[] outX, double[] outY)
+  {
+    int numOut = 0;
+    for (int i = 0, j = numVertices - 1; i < numVertices; j = i++)
+    {
+      double distanceJ = (vertical ? inX[j] : inY[j]) - bound;
+      double distanceI = (vertical ? inX[i] : inY[i]) - bound;
+      if (!keepBelow)
+      {
+        distanceJ = -distanceJ;
+        distanceI = -distanceI;
+      }
+      boolean insideJ = distanceJ <= 0.0;
+      boolean insideI = distanceI <= 0.0;
+      if (insideJ != insideI)
+      {
+        double t = distanceJ / (distanceJ - distanceI);
+        outX[numOut] = vertical ? bound : inX[j] + t * (inX[i] - inX[j]);
+        outY[numOut] = vertical ? inY[j] + t * (inY[i] - inY[j]) : bound;
+        numOut++;
+      }
+      if (insideI)
+      {
+        outX[numOut] = inX[i];
+        outY[numOut] = inY[i];
+        numOut++;
+      }
+    }
+    return numOut;
+  }
+
+  /**
+   * Blends the triangle's color into pixels [x0, x1) of row y, with the alpha of each pixel
+   * scaled by its COVERAGE_ROW entry (which is reset to 0 afterwards). FIXED_POINT blends
+   * through MULTIPLY and SCANLINE blends with floats.
+   */
+  private void blendCoverageRow(int y, int x0, int x1)
+  {
+    if (recording)
+    {
+      recordCoverageRow(y, x0, x1);
+      return;
+    }
+    int rowOffset = y * width;
+    // Fully covered pixels blend the same way every time, so their source terms are done once
+    int fullAlphaRow = coverAlpha << 8;
+    int fullInvAlphaRow = (255 - coverAlpha) << 8;
+    int fullRed = MULTIPLY[fullAlphaRow | coverRed] & 0xFF;
+    int fullGreen = MULTIPLY[fullAlphaRow | coverGreen] & 0xFF;
+    int fullBlue = MULTIPLY[fullAlphaRow | coverBlue] & 0xFF;
+    float fullInvAlpha = 1.0f - coverAlphaFloat;
+    float fullRedFloat = coverRed * coverAlphaFloat + 0.5f;
+    float fullGreenFloat = coverGreen * coverAlphaFloat + 0.5f;
+    float fullBlueFloat = coverBlue * coverAlphaFloat + 0.5f;
+    for (int x = x0; x < x1; x++)
+    {
+      int coverage = COVERAGE_ROW[x];
+      COVERAGE_ROW[x] = 0;
+      if (coverage <= 0) continue;
+      if (coverage > 255) coverage = 255;
+      int i = rowOffset + x;
+      int dst = PIXELS[i];
+      int r, g, b;
+      if (MODE == RenderMode.FIXED_POINT && coverage == 255)
+      {
+        r = fullRed + (MULTIPLY[fullInvAlphaRow | ((dst >> 16) & 0xFF)] & 0xFF);
+        g = fullGreen + (MULTIPLY[fullInvAlphaRow | ((dst >> 8) & 0xFF)] & 0xFF);
+        b = fullBlue + (MULTIPLY[fullInvAlphaRow | (dst & 0xFF)] & 0xFF);
+      }
+      else if (MODE == RenderMode.FIXED_POINT)
+      {
+        int alphaRow = (MULTIPLY[(coverAlpha << 8) | coverage] & 0xFF) << 8;
+        int invAlphaRow = (255 << 8) - alphaRow;
+        r = (MULTIPLY[alphaRow | coverRed] & 0xFF) + (MULTIPLY[invAlphaRow | ((dst >> 16) & 0xFF)] & 0xFF);
+        g = (MULTIPLY[alphaRow | coverGreen] & 0xFF) + (MULTIPLY[invAlphaRow | ((dst >> 8) & 0xFF)] & 0xFF);
+        b = (MULTIPLY[alphaRow | coverBlue] & 0xFF) + (MULTIPLY[invAlphaRow | (dst & 0xFF)] & 0xFF);
+      }
+      else if (coverage == 255)
+      {
+        r = (int)(fullRedFloat + ((dst >> 16) & 0xFF) * fullInvAlpha);
+        g = (int)(fullGreenFloat + ((dst >> 8) & 0xFF) * fullInvAlpha);
+        b = (int)(fullBlueFloat + (dst & 0xFF) * fullInvAlpha);
+      }
+      else
+      {
+        float alpha = coverAlphaFloat * coverage / 255.0f;
+        float invAlpha = 1.0f - alpha;
+        r = (int)(coverRed * alpha + 0.5f + ((dst >> 16) & 0xFF) * invAlpha);
+        g = (int)(coverGreen * alpha + 0.5f + ((dst >> 8) & 0xFF) * invAlpha);
+        b = (int)(coverBlue * alpha + 0.5f + (dst & 0xFF) * invAlpha);
+      }
+      PIXELS[i] = OPAQUE_BLACK | (r << 16) | (g << 8) | b;
+    }
+  }
+
+  /**
+   * Adds pixels [x0, x1) of row y to spanCache with their COVERAGE_ROW entries (which are
+   * reset to 0). The run between the first and last fully covered pixels is stored as
+   * fully covered if every pixel in it is.
+   */
+  private void recordCoverageRow(int y, int x0, int x1)
+  {
+    int fullStart = x0;
+    while (fullStart < x1 && COVERAGE_ROW[fullStart] < 255) fullStart++;
+    int fullEnd = x1;
+    while (fullEnd > fullStart && COVERAGE_ROW[fullEnd - 1] < 255) fullEnd--;
+    for (int x = fullStart; x < fullEnd; x++)
+    {
+      if (COVERAGE_ROW[x] < 255)
+      {
+        fullStart = fullEnd = x1;
+        break;
+      }
+    }
+    spanCache.addRow(y, x0, fullStart, fullEnd, x1, COVERAGE_ROW);
+    Arrays.fill(COVERAGE_ROW, x0, x1, 0);
+  }
+
+  /**
+   * Turns a color channel into an index for MULTIPLY the same way packData does, but
+   * clamped to [0, 255].
+   */
+  private static int clampChannel(float channel)
+  {
+    int value = (int)channel;
+    return value < 0 ? 0 : value > 255 ? 255 : value;
+  }
+
+  /**
+   * Widens [spanLeft, spanRight] to include the point where the given edge crosses the
+   * horizontal line y = center. Edges are treated as half-open in y so that a shared vertex
+   * is only counted once and horizontal edges are skipped.
+   */
+  private void intersectEdge(float xa, float ya, float xb, float yb, float center)
+  {
+    if ((center < ya) == (center < yb)) return; // edge does not cross this row
+    float x = xa + (center - ya) * (xb - xa) / (yb - ya);
+    if (x < spanLeft) spanLeft = x;
+    if (x > spanRight) spanRight = x;
   }
 
   /**
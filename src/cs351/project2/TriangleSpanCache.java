@@ -0,0 +1,250 @@
+package cs351.project2;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which pixels recently drawn triangles covered so that drawing a triangle with
+ * the same vertices again (with any color) can skip straight to blending. Entries are keyed
+ * by a triangle's six whole-pixel vertex values and hold one row per covered pixel row:
+ * the covered columns [x0, x1), the fully covered columns [fullStart, fullEnd) inside them,
+ * and an 8-bit coverage for each partly covered column. Rows drawn without antialiasing are
+ * fully covered from x0 to x1.
+ *
+ * Storage starts small and doubles as needed up to a limit. Once it is full, everything but
+ * the entry being recorded is dropped. The limit always leaves room for one triangle that
+ * covers the whole image, so recording never fails.
+ *
+ * This is not thread safe.
+ *
+ * @author Justin
+ */
+final class TriangleSpanCache
+{
+  /**
+   * Number of ints each row takes up in getRows(): y, x0, fullStart, fullEnd, x1 and the
+   * offset of the row's partial coverage in getCoverage().
+   */
+  static final int ROW_INTS = 6;
+  private static final int MAX_ENTRIES = 1024;
+  private static final int TABLE_SIZE = MAX_ENTRIES * 2; // power of two, at most half full
+  private static final int MAX_ROWS = 1 << 16;
+  private static final int MAX_COVERAGE = 1 << 21; // bytes
+  private static final int INITIAL_ROWS = 1024;
+  private static final int INITIAL_COVERAGE = 1 << 14; // bytes
+  private final int[] TABLE = new int[TABLE_SIZE]; // entry + 1, or 0 if the slot is empty
+  private final int[] KEYS = new int[MAX_ENTRIES * 6];
+  private final int[] FIRST_ROWS = new int[MAX_ENTRIES];
+  private final int[] ROW_COUNTS = new int[MAX_ENTRIES];
+  private final int ROW_LIMIT, COVERAGE_LIMIT;
+  private int[] rows = new int[INITIAL_ROWS * ROW_INTS];
+  private byte[] coverage = new byte[INITIAL_COVERAGE];
+  private int numEntries = 0;
+  private int numRows = 0;
+  private int coverageUsed = 0;
+  // Entry being recorded by begin/addRow/end
+  private int recordingFirstRow, recordingCoverageStart;
+  private int recordingX1, recordingY1, recordingX2, recordingY2, recordingX3, recordingY3;
+
+  /**
+   * Creates an empty cache for triangles drawn to an image of the given size.
+   * @param width width (in pixels)
+   * @param height height (in pixels)
+   */
+  TriangleSpanCache(int width, int height)
+  {
+    ROW_LIMIT = Math.max(MAX_ROWS, height);
+    COVERAGE_LIMIT = Math.max(MAX_COVERAGE, width * height);
+  }
+
+  /**
+   * Drops every entry.
+   */
+  void clear()
+  {
+    Arrays.fill(TABLE, 0);
+    numEntries = 0;
+    numRows = 0;
+    coverageUsed = 0;
+  }
+
+  /**
+   * Looks up the triangle with the given whole-pixel vertices.
+   * @return entry index, or -1 if the triangle isn't cached
+   */
+  int find(int[] xVertices, int[] yVertices)
+  {
+    int slot = hash(xVertices, yVertices);
+    while (TABLE[slot] != 0)
+    {
+      int entry = TABLE[slot] - 1;
+      int offset = entry * 6;
+      if (KEYS[offset] == xVertices[0] && KEYS[offset + 1] == yVertices[0] && KEYS[offset + 2] == xVertices[1] &&
+          KEYS[offset + 3] == yVertices[1] && KEYS[offset + 4] == xVertices[2] && KEYS[offset + 5] == yVertices[2])
+      {
+        return entry;
+      }
+      slot = (slot + 1) & (TABLE_SIZE - 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Starts recording the rows of the triangle with the given whole-pixel vertices. Rows are
+   * added with addRow, from top to bottom, and the entry is finished with end().
+   */
+  void begin(int[] xVertices, int[] yVertices)
+  {
+    if (numEntries == MAX_ENTRIES) clear();
+    recordingFirstRow = numRows;
+    recordingCoverageStart = coverageUsed;
+    recordingX1 = xVertices[0];
+    recordingY1 = yVertices[0];
+    recordingX2 = xVertices[1];
+    recordingY2 = yVertices[1];
+    recordingX3 = xVertices[2];
+    recordingY3 = yVertices[2];
+  }
+
+  /**
+   * Adds a row to the entry being recorded. The coverage of the partly covered columns
+   * [x0, fullStart) and [fullEnd, x1) is copied from rowCoverage (indexed by column), which
+   * may be null if the whole row is fully covered.
+   */
+  void addRow(int y, int x0, int fullStart, int fullEnd, int x1, int[] rowCoverage)
+  {
+    int numPartial = (fullStart - x0) + (x1 - fullEnd);
+    if (numRows == rows.length / ROW_INTS || coverageUsed + numPartial > coverage.length)
+    {
+      makeRoom(numPartial);
+    }
+    int offset = numRows * ROW_INTS;
+    rows[offset] = y;
+    rows[offset + 1] = x0;
+    rows[offset + 2] = fullStart;
+    rows[offset + 3] = fullEnd;
+    rows[offset + 4] = x1;
+    rows[offset + 5] = coverageUsed;
+    numRows++;
+    for (int x = x0; x < fullStart; x++) coverage[coverageUsed++] = toByte(rowCoverage[x]);
+    for (int x = fullEnd; x < x1; x++) coverage[coverageUsed++] = toByte(rowCoverage[x]);
+  }
+
+  /**
+   * Finishes the entry being recorded.
+   * @return entry index (valid until the next call to begin or clear)
+   */
+  int end()
+  {
+    int entry = numEntries++;
+    int offset = entry * 6;
+    KEYS[offset] = recordingX1;
+    KEYS[offset + 1] = recordingY1;
+    KEYS[offset + 2] = recordingX2;
+    KEYS[offset + 3] = recordingY2;
+    KEYS[offset + 4] = recordingX3;
+    KEYS[offset + 5] = recordingY3;
+    FIRST_ROWS[entry] = recordingFirstRow;
+    ROW_COUNTS[entry] = numRows - recordingFirstRow;
+
+    int slot = hash(KEYS, offset);
+    while (TABLE[slot] != 0) slot = (slot + 1) & (TABLE_SIZE - 1);
+    TABLE[slot] = entry + 1;
+    return entry;
+  }
+
+  /**
+   * Gets the index of an entry's first row in getRows() (in rows, not ints).
+   */
+  int getFirstRow(int entry)
+  {
+    return FIRST_ROWS[entry];
+  }
+
+  /**
+   * Gets the number of rows an entry has.
+   */
+  int getRowCount(int entry)
+  {
+    return ROW_COUNTS[entry];
+  }
+
+  /**
+   * Gets the row data of every entry, ROW_INTS ints per row. The array is replaced when the
+   * cache grows, so it should be fetched again after recording.
+   */
+  int[] getRows()
+  {
+    return rows;
+  }
+
+  /**
+   * Gets the partial coverage of every entry's rows, one byte (0 to 255) per column.
+   */
+  byte[] getCoverage()
+  {
+    return coverage;
+  }
+
+  /**
+   * Grows the storage, or if it can't grow any more, drops every finished entry and moves
+   * the one being recorded to the front.
+   */
+  private void makeRoom(int numPartial)
+  {
+    int rowsNeeded = numRows + 1;
+    int coverageNeeded = coverageUsed + numPartial;
+    if (rowsNeeded > ROW_LIMIT || coverageNeeded > COVERAGE_LIMIT)
+    {
+      int recordedRows = numRows - recordingFirstRow;
+      int recordedCoverage = coverageUsed - recordingCoverageStart;
+      System.arraycopy(rows, recordingFirstRow * ROW_INTS, rows, 0, recordedRows * ROW_INTS);
+      System.arraycopy(coverage, recordingCoverageStart, coverage, 0, recordedCoverage);
+      for (int row = 0; row < recordedRows; row++) rows[row * ROW_INTS + 5] -= recordingCoverageStart;
+      Arrays.fill(TABLE, 0);
+      numEntries = 0;
+      numRows = recordedRows;
+      coverageUsed = recordedCoverage;
+      recordingFirstRow = 0;
+      recordingCoverageStart = 0;
+      rowsNeeded = numRows + 1;
+      coverageNeeded = coverageUsed + numPartial;
+    }
+    if (rowsNeeded * ROW_INTS > rows.length)
+    {
+      rows = Arrays.copyOf(rows, Math.min(Math.max(rows.length * 2, rowsNeeded * ROW_INTS), ROW_LIMIT * ROW_INTS));
+    }
+    if (coverageNeeded > coverage.length)
+    {
+      coverage = Arrays.copyOf(coverage, Math.min(Math.max(coverage.length * 2, coverageNeeded), COVERAGE_LIMIT));
+    }
+  }
+
+  private static byte toByte(int rowCoverage)
+  {
+    return (byte)Math.max(Math.min(rowCoverage, 255), 0);
+  }
+
+  private static int hash(int[] xVertices, int[] yVertices)
+  {
+    int hash = xVertices[0];
+    hash = hash * 31 + yVertices[0];
+    hash = hash * 31 + xVertices[1];
+    hash = hash * 31 + yVertices[1];
+    hash = hash * 31 + xVertices[2];
+    hash = hash * 31 + yVertices[2];
+    return mix(hash);
+  }
+
+  private static int hash(int[] keys, int offset)
+  {
+    int hash = keys[offset];
+    for (int i = 1; i < 6; i++) hash = hash * 31 + keys[offset + i];
+    return mix(hash);
+  }
+
+  private static int mix(int hash)
+  {
+    hash *= 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+  }
+}
@@ -3,10 +3,12 @@ package cs351.project2.crossover;
 import cs351.core.Cross;
 import cs351.core.Engine.EvolutionEngine;
 import cs351.core.Engine.GUI;
+import cs351.core.FitnessFunction;
 import cs351.core.Genome;
 import cs351.core.TriangleManager;
 import cs351.project2.Engine;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
 
@@ -25,6 +27,7 @@ import java.util.Random;
 public class UniformCrossMutate implements Cross
 {
   protected static final Random RAND = new Random();
+  protected static final int NUM_TRIES = 2; // offspring made per cross
   protected int dnaLength = 10;
   protected float mutationChance = 0.006f;
   protected float mutateAmount = 0.1f;
@@ -43,11 +46,11 @@ public class UniformCrossMutate implements Cross
   @Override
   public Genome cross(EvolutionEngine engine, Genome first, Genome second)
   {
-    Genome best = null;
     GUI gui = engine.getGUI();
     TriangleManager manager = new TriangleManager();
+    ArrayList<Genome> offspringList = new ArrayList<>(NUM_TRIES);
 
-    for (int tries = 0; tries < 2; tries++)
+    for (int tries = 0; tries < NUM_TRIES; tries++)
     {
       Genome offspring = new Genome();
       Iterator<float[]> itrFirst = first.getTriangles().iterator();
@@ -71,11 +74,22 @@ public class UniformCrossMutate implements Cross
         offspring.add(manager.revertNormalization(newGenes));
       }
 
-      offspring.setFitness(engine.getPopulation().getFitnessFunction().generateFitness(engine, offspring));
+      offspringList.add(offspring);
       ((Engine) engine).incrementGenerationCount();
       ((Engine)engine).incrementCrossCount();
+    }
+
+    // Only the best offspring is kept, so the other can be rejected early
+    FitnessFunction function = engine.getPopulation().getFitnessFunction();
+    double[] fitness = new double[NUM_TRIES];
+    function.generateFitness(engine, offspringList, fitness, Double.NEGATIVE_INFINITY);
+    Genome best = null;
+    for (int i = 0; i < NUM_TRIES; i++)
+    {
+      Genome offspring = offspringList.get(i);
+      offspring.setFitness(fitness[i]);
       if (best == null) best = offspring;
-      else best = engine.getPopulation().getFitnessFunction().compare(best, offspring);
+      else best = function.compare(best, offspring);
     }
     return best;
   }
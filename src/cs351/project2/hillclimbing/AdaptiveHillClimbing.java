@@ -209,7 +209,8 @@ public class AdaptiveHillClimbing implements Mutator
       normalizedTriangle[wrapper.getGeneIndex()] += mutateAmount;
       normalizedTriangle[wrapper.getGeneIndex()] = bound(normalizedTriangle[wrapper.getGeneIndex()], 0.02f, 1.0f);
       triangle[wrapper.getGeneIndex()] = manager.revertNormalization(normalizedTriangle)[wrapper.getGeneIndex()];
-      genome.setFitness(function.generateFitness(engine, genome));
+      // Anything below prevFitness gets reverted, so there's no need to finish scoring it
+      genome.setFitness(function.generateDeltaFitness(engine, genome, prevFitness));
       ((Engine) engine).incrementGenerationCount();
       ((Engine)engine).incrementMutationCount();
       if (genome.getFitness() < prevFitness)
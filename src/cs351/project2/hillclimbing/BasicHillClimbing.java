@@ -78,7 +78,7 @@ public class BasicHillClimbing implements Mutator
     float prevValue = currTriangle[currGeneIndex];
     currTriangle[currGeneIndex] = manager.revertNormalization(normalizedTriangle)[currGeneIndex];
     double prevFitness = genome.getFitness();
-    genome.setFitness(function.generateFitness(engine, genome));
+    genome.setFitness(function.generateDeltaFitness(engine, genome, prevFitness));
     ((Engine)engine).incrementGenerationCount();
     ((Engine)engine).incrementMutationCount();
     if (genome.getFitness() > prevFitness)
@@ -90,6 +90,7 @@ public class BasicHillClimbing implements Mutator
     else
     {
       currTriangle[currGeneIndex] = prevValue;
+      genome.setFitness(prevFitness);
       prevTriangle = null;
     }
   }
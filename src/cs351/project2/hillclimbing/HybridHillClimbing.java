@@ -7,6 +7,7 @@ import cs351.core.Mutator;
 import cs351.core.TriangleManager;
 import cs351.project2.Engine;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
 
@@ -27,6 +28,7 @@ import java.util.Random;
  */
 public class HybridHillClimbing implements Mutator
 {
+  private static final int NUM_TRIALS = 10; // spinoffs per mutate
   private Genome genome = null;
   private final float DEFAULT_MUTATION_CHANCE = 0.006f;
   private final Random RAND = new Random();
@@ -67,8 +69,8 @@ public class HybridHillClimbing implements Mutator
     int changeAmountBound = 100;
     int colorChangeAmount = 10;
     float addTriangleChance = 0.05f;
-    Genome best = null;
-    for (int trials = 0; trials < 10; trials++)
+    ArrayList<Genome> spinoffs = new ArrayList<>(NUM_TRIALS);
+    for (int trials = 0; trials < NUM_TRIALS; trials++)
     {
       Genome spinoff = new Genome();
       if (RAND.nextFloat() <= addTriangleChance) numTrianglesToMutate++;
@@ -135,7 +137,17 @@ public class HybridHillClimbing implements Mutator
       //System.out.println(numMutations);
       ((Engine) engine).incrementGenerationCount();
       ((Engine)engine).incrementMutationCount();
-      spinoff.setFitness(function.generateFitness(engine, spinoff));
+      spinoffs.add(spinoff);
+    }
+
+    // Only the best spinoff matters, so the rest can be rejected early
+    double[] fitness = new double[NUM_TRIALS];
+    function.generateFitness(engine, spinoffs, fitness, Double.NEGATIVE_INFINITY);
+    Genome best = null;
+    for (int i = 0; i < NUM_TRIALS; i++)
+    {
+      Genome spinoff = spinoffs.get(i);
+      spinoff.setFitness(fitness[i]);
       best = evaluate(best, spinoff);
     }
     completeStep(best);
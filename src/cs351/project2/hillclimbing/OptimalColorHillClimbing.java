@@ -0,0 +1,105 @@
+package cs351.project2.hillclimbing;
+
+import cs351.core.Engine.EvolutionEngine;
+import cs351.core.FitnessFunction;
+import cs351.core.Genome;
+import cs351.core.Mutator;
+import cs351.project2.ColorSolver;
+import cs351.project2.Engine;
+import cs351.project2.FitnessCalculator;
+import javafx.scene.image.Image;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Hill climber that only searches over triangle shapes and leaves color to ColorSolver.
+ * Each try moves one vertex of a random triangle, sets the triangle's color to the least
+ * squares best color for its new shape (at its current alpha) and keeps the change if the
+ * fitness doesn't drop. Every so often a try just re-solves the color of a triangle without
+ * moving it, which mostly helps genomes that start out with random colors.
+ *
+ * A change costs a single fitness evaluation whether or not the color changes, where a
+ * random search would spend several evaluations trying colors.
+ *
+ * @author Justin
+ */
+public class OptimalColorHillClimbing implements Mutator
+{
+  private static final ColorSolver SOLVER = new ColorSolver(); // for fitness functions that aren't FitnessCalculators
+  private static final int NUM_TRIES = 10;
+  private static final float MAX_VERTEX_CHANGE = 0.1f; // fraction of the image's width or height
+  private static final float COLOR_ONLY_CHANCE = 0.1f;
+  private final ArrayList<float[]> TRIANGLE_LIST = new ArrayList<>(200);
+  private final float[] PREVIOUS_GENES = new float[10];
+  private final Random RAND = new Random();
+  private Genome genome = null;
+
+  /**
+   * Sets the genome. Should clear out all data maintained for the
+   * previous genome if there is any.
+   *
+   * @param genome new genome
+   */
+  @Override
+  public void setGenome(Genome genome)
+  {
+    this.genome = genome;
+    TRIANGLE_LIST.clear();
+    TRIANGLE_LIST.addAll(genome.getTriangles());
+  }
+
+  /**
+   * At this point the mutator should decide on a mutation(s) and
+   * perform them.
+   *
+   * @param function fitness function to use
+   * @param engine   reference to the current engine
+   */
+  @Override
+  public void mutate(FitnessFunction function, EvolutionEngine engine)
+  {
+    Image target = engine.getTarget();
+    if (genome == null || TRIANGLE_LIST.isEmpty() || target == null) return;
+    // A FitnessCalculator solves at the level and quality it scores with, anything else
+    // gets colors solved against the full resolution target
+    FitnessCalculator calculator = function instanceof FitnessCalculator ? (FitnessCalculator)function : null;
+    if (calculator == null) SOLVER.setTargetImage(target);
+    float width = (int)target.getWidth();
+    float height = (int)target.getHeight();
+    for (int tries = 0; tries < NUM_TRIES; tries++)
+    {
+      float[] triangle = TRIANGLE_LIST.get(RAND.nextInt(TRIANGLE_LIST.size()));
+      System.arraycopy(triangle, 0, PREVIOUS_GENES, 0, triangle.length);
+      double prevFitness = genome.getFitness();
+      if (RAND.nextFloat() >= COLOR_ONLY_CHANCE)
+      {
+        int vertex = RAND.nextInt(3) * 2;
+        triangle[vertex] = bound(triangle[vertex] + generateMutationAmount(width), 0.0f, width);
+        triangle[vertex + 1] = bound(triangle[vertex + 1] + generateMutationAmount(height), 0.0f, height);
+      }
+      if (calculator != null) calculator.solveColor(genome, triangle);
+      else SOLVER.solve(genome, triangle);
+
+      // Anything below prevFitness gets reverted, so there's no need to finish scoring it
+      genome.setFitness(function.generateDeltaFitness(engine, genome, prevFitness));
+      ((Engine)engine).incrementGenerationCount();
+      ((Engine)engine).incrementMutationCount();
+      if (genome.getFitness() >= prevFitness) break;
+      System.arraycopy(PREVIOUS_GENES, 0, triangle, 0, triangle.length);
+      genome.setFitness(prevFitness);
+    }
+  }
+
+  private float generateMutationAmount(float size)
+  {
+    return (RAND.nextFloat() * 2.0f - 1.0f) * MAX_VERTEX_CHANGE * size;
+  }
+
+  private float bound(float value, float min, float max)
+  {
+    if (value > max) return max;
+    else if (value < min) return min;
+    return value;
+  }
+}
@@ -123,29 +123,27 @@ public class JobList
 
   /**
    * Returns only when the job system has completed all jobs that were associated with
-   * this list before being submitted.
+   * this list before being submitted. The calling thread sleeps on each counter until
+   * the worker thread that finishes its last job wakes it up.
    */
   public void waitForCompletion()
   {
     try
     {
-      boolean isComplete = false;
-      while (!isComplete)
+      for (AtomicInteger counter : ACTIVE_COUNTERS)
       {
-        isComplete = true;
-        if (containsActiveJobs())
+        synchronized (counter)
         {
-          isComplete = false;
-          Thread.sleep(1);
+          while (counter.get() > 0) counter.wait();
         }
       }
-      // handled by containsActiveJobs() function - commented out
       // Clear the counters since by now they're all 0
-      //ACTIVE_COUNTERS.clear();
+      ACTIVE_COUNTERS.clear();
     }
     catch (InterruptedException e)
     {
-      // Do nothing
+      // Leave the unfinished counters so the caller can wait again
+      Thread.currentThread().interrupt();
     }
   }
 }
@@ -56,11 +56,18 @@ public final class ParallelJobGroup
     }
 
     /**
-     * Decrements the overall job counter by 1.
+     * Decrements the overall job counter by 1 and wakes up any threads waiting on
+     * the counter once it reaches 0.
      */
     public void markCompleted()
     {
-      COUNTER.getAndDecrement();
+      if (COUNTER.decrementAndGet() == 0)
+      {
+        synchronized (COUNTER)
+        {
+          COUNTER.notifyAll();
+        }
+      }
     }
   }
 
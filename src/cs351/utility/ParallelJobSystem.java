@@ -110,7 +110,8 @@ public final class ParallelJobSystem
    * @param priority their priority (lower numbers being higher priority)
    * @param clearGivenJobList if true, the given job list is wiped
    * @return an atomic integer representing a counter - when the counter is 0, the job list
-   *         has been completed by the worker threads
+   *         has been completed by the worker threads, and anything waiting on the counter's
+   *         monitor is notified
    * @throws IllegalStateException thrown if used after destruction or before init
    */
   public AtomicInteger submit(Collection<Job> jobs, int priority, boolean clearGivenJobList) throws IllegalStateException
@@ -60,8 +60,15 @@ public final class WorkerThread extends Thread
         // two calls to getNextJob will return the same value
         while ((currentJob = GROUP.getNextJob()) != null)
         {
-          currentJob.getJob().start(THREAD_ID);
-          currentJob.markCompleted();
+          // Marked completed even if the job throws so that nothing waiting on its list hangs
+          try
+          {
+            currentJob.getJob().start(THREAD_ID);
+          }
+          finally
+          {
+            currentJob.markCompleted();
+          }
         }
       }
     }